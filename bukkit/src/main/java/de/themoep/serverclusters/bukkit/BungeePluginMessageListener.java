@@ -1,14 +1,22 @@
 package de.themoep.serverclusters.bukkit;
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
+import de.themoep.serverclusters.common.protocol.ErrorMessage;
+import de.themoep.serverclusters.common.protocol.LocationData;
+import de.themoep.serverclusters.common.protocol.LocationRequestMessage;
+import de.themoep.serverclusters.common.protocol.Message;
+import de.themoep.serverclusters.common.protocol.PlayerLocationMessage;
+import de.themoep.serverclusters.common.protocol.PrepareTeleportMessage;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.ProtocolException;
+import de.themoep.serverclusters.common.protocol.TeleportRequestMessage;
+import de.themoep.serverclusters.common.protocol.TeleportToLocationMessage;
+import de.themoep.serverclusters.common.protocol.TeleportToPlayerMessage;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.messaging.PluginMessageListener;
 
-import java.util.UUID;
+import java.util.logging.Level;
 
 /**
  * Created by Phoenix616 on 08.01.2015.
@@ -20,70 +28,58 @@ public class BungeePluginMessageListener implements PluginMessageListener {
     public BungeePluginMessageListener(ServerClustersBukkit plugin) {
         this.plugin = plugin;
 
-        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, "sc:tptoplayer", this);
-        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, "sc:tptolocation", this);
-        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, "sc:getlocation", this);
-        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, "sc:addrequest", this);
-        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, "sc:playerlocation");
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, Protocol.TELEPORT_TO_PLAYER, this);
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, Protocol.TELEPORT_TO_LOCATION, this);
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, Protocol.PREPARE_TELEPORT, this);
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, Protocol.LOCATION_REQUEST, this);
+        plugin.getServer().getMessenger().registerIncomingPluginChannel(plugin, Protocol.TELEPORT_REQUEST, this);
+        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, Protocol.PLAYER_LOCATION);
     }
 
-    public void onPluginMessageReceived(String channel, Player receiver, byte[] message) {
+    public void onPluginMessageReceived(String channel, Player receiver, byte[] data) {
         if (channel.startsWith("sc:")) {
-            ByteArrayDataInput in = ByteStreams.newDataInput(message);
-
             plugin.debug(receiver.getName() + " received plugin message on channel '" + channel + "'");
 
-            if ("sc:tptoplayer".equals(channel)) {
-                String playername = in.readUTF();
-                String targetname = in.readUTF();
-                plugin.getTeleportManager().teleport(playername, targetname);
+            Message message;
+            try {
+                message = Protocol.decode(channel, data);
+            } catch (ProtocolException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not read plugin message on " + channel + ": " + e.getMessage());
+                return;
+            }
+
+            if (message instanceof TeleportToPlayerMessage) {
+                TeleportToPlayerMessage teleport = (TeleportToPlayerMessage) message;
+                plugin.getTeleportManager().teleport(teleport.getPlayerId(), teleport.getTargetId());
 
-            } else if ("sc:tptolocation".equals(channel)) {
-                String playername = in.readUTF();
-                String worldname = in.readUTF();
-                double x = in.readDouble();
-                double y = in.readDouble();
-                double z = in.readDouble();
-                float yaw = in.readFloat();
-                float pitch = in.readFloat();
-                World world = plugin.getServer().getWorld(worldname);
+            } else if (message instanceof TeleportToLocationMessage) {
+                TeleportToLocationMessage teleport = (TeleportToLocationMessage) message;
+                LocationData location = teleport.getLocation();
+                World world = plugin.getServer().getWorld(location.getWorld());
                 if (world == null) {
-                    ByteArrayDataOutput out = ByteStreams.newDataOutput();
-                    out.writeUTF("unknown world");
-                    out.writeUTF(worldname);
-                    receiver.sendPluginMessage(this.plugin, "sc:error", out.toByteArray());
+                    receiver.sendPluginMessage(this.plugin, Protocol.ERROR, Protocol.encode(new ErrorMessage("unknown world", location.getWorld())));
                     return;
                 }
 
-                Location loc = new Location(plugin.getServer().getWorld(worldname), x, y, z, yaw, pitch);
-                plugin.getTeleportManager().teleport(playername, loc);
+                Location loc = new Location(world, location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+                plugin.getTeleportManager().teleport(teleport.getPlayerIds(), loc);
 
-            } else if ("sc:getlocation".equals(channel)) {
-                String reason = in.readUTF();
-                String sender = in.readUTF();
-                UUID playerId = new UUID(in.readLong(), in.readLong());
-                Player player = plugin.getServer().getPlayer(playerId);
-
-                ByteArrayDataOutput out = ByteStreams.newDataOutput();
-
-                out.writeUTF(reason);
-                out.writeUTF(sender);
-                if (player == null) {
-                    out.writeUTF("playernotfound");
-                } else {
-                    Location loc = player.getLocation();
-                    out.writeUTF(loc.getWorld().getName());
-                    out.writeDouble(loc.getX());
-                    out.writeDouble(loc.getY());
-                    out.writeDouble(loc.getZ());
-                    out.writeFloat(loc.getYaw());
-                    out.writeFloat(loc.getPitch());
+            } else if (message instanceof PrepareTeleportMessage) {
+                LocationData location = ((PrepareTeleportMessage) message).getLocation();
+                World world = plugin.getServer().getWorld(location.getWorld());
+                if (world != null) {
+                    plugin.getChunkPreloadManager().preload(world, Location.locToBlock(location.getX()) >> 4, Location.locToBlock(location.getZ()) >> 4);
                 }
 
-                receiver.sendPluginMessage(this.plugin, "sc:playerlocation", out.toByteArray());
-            } else if ("sc:addtprequest".equals(channel)) {
-                UUID playerId = new UUID(in.readLong(), in.readLong());
-                plugin.getTeleportManager().addRequest(playerId, System.currentTimeMillis());
+            } else if (message instanceof LocationRequestMessage) {
+                LocationRequestMessage request = (LocationRequestMessage) message;
+                Player player = plugin.getServer().getPlayer(request.getPlayerId());
+                LocationData location = player != null ? ServerClustersBukkit.toLocationData(player.getLocation()) : null;
+                PlayerLocationMessage response = new PlayerLocationMessage(request.getReason(), request.getSender(), location);
+                receiver.sendPluginMessage(this.plugin, Protocol.PLAYER_LOCATION, Protocol.encode(response));
+
+            } else if (message instanceof TeleportRequestMessage) {
+                plugin.getTeleportManager().addRequest(((TeleportRequestMessage) message).getPlayerId(), System.currentTimeMillis());
             }
         }
     }
@@ -3,49 +3,51 @@ package de.themoep.serverclusters.bukkit;
 import de.themoep.serverclusters.bukkit.enums.EntryType;
 import org.bukkit.Location;
 
+import java.util.UUID;
+
 /**
  * Created by Phoenix616 on 08.01.2015.
  */
 public class QueueEntry {
 
-    private final String playerName;
+    private final UUID playerId;
     private final Location loc;
-    private final String string;
+    private final UUID targetId;
     private final EntryType type;
     private final long timestamp;
 
     /**
      * An location entry in a player queue.
-     * @param playerName The name of the player that this entry is for
+     * @param playerId The UUID of the player that this entry is for
      * @param loc The location
      */
-    public QueueEntry(String playerName, Location loc) {
-        this(playerName, null, loc, EntryType.LOCATION);
+    public QueueEntry(UUID playerId, Location loc) {
+        this(playerId, null, loc, EntryType.LOCATION);
     }
 
     /**
-     * A string entry in a player queue.
-     * @param playerName The name of the player that this entry is for
-     * @param string The location
+     * A player entry in a player queue.
+     * @param playerId The UUID of the player that this entry is for
+     * @param targetId The UUID of the player to teleport to
      */
-    public QueueEntry(String playerName, String string) {
-        this(playerName, string, null, EntryType.STRING);
+    public QueueEntry(UUID playerId, UUID targetId) {
+        this(playerId, targetId, null, EntryType.PLAYER);
     }
 
-    private QueueEntry(String playerName, String string, Location loc, EntryType type) {
-        this.playerName = playerName;
-        this.string = string;
+    private QueueEntry(UUID playerId, UUID targetId, Location loc, EntryType type) {
+        this.playerId = playerId;
+        this.targetId = targetId;
         this.loc = loc;
         this.type = type;
         this.timestamp = System.currentTimeMillis();
     }
 
     /**
-     * Get the name of the player that this entry is for
-     * @return The player name
+     * Get the UUID of the player that this entry is for
+     * @return The player's UUID
      */
-    public String getPlayerName() {
-        return playerName;
+    public UUID getPlayerId() {
+        return playerId;
     }
 
     /**
@@ -73,11 +75,11 @@ public class QueueEntry {
     }
 
     /**
-     * Gets the string associated with the entry
-     * @return String: the string, null if no string entry
+     * Gets the UUID of the target player associated with the entry
+     * @return UUID: the target's UUID, null if no player entry
      */
-    public String getString() {
-        return string;
+    public UUID getTargetId() {
+        return targetId;
     }
 
     /**
@@ -85,6 +87,6 @@ public class QueueEntry {
      * @return A copy of this QueueEntry
      */
     public QueueEntry copy() {
-        return new QueueEntry(playerName, string, loc, type);
+        return new QueueEntry(playerId, targetId, loc, type);
     }
 }
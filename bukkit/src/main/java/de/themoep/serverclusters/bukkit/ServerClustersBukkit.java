@@ -1,11 +1,14 @@
 package de.themoep.serverclusters.bukkit;
 
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
+import de.themoep.serverclusters.bukkit.manager.ChunkPreloadManager;
+import de.themoep.serverclusters.bukkit.manager.SafeLocationResolver;
+import de.themoep.serverclusters.bukkit.manager.TeleportExecutor;
 import de.themoep.serverclusters.bukkit.manager.TeleportManager;
-
-import org.apache.commons.lang.StringUtils;
+import de.themoep.serverclusters.common.protocol.LocationData;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.RunCommandMessage;
 import org.bukkit.ChatColor;
+import org.bukkit.Location;
 import org.bukkit.command.BlockCommandSender;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -22,25 +25,46 @@ import java.util.logging.Level;
 public class ServerClustersBukkit extends JavaPlugin {
 
     private TeleportManager tpman;
+    private ChunkPreloadManager chunkPreloadManager;
+    private TeleportExecutor teleportExecutor;
+    private SafeLocationResolver safeLocationResolver;
     private int teleportDelay;
     private int queueTimeout;
+    private int chunkPreloadTime;
+    private int teleportTickBudget;
     private boolean debug;
     
     public void onEnable() {
 
         teleportDelay = getConfig().getInt("teleportDelay");
         queueTimeout = getConfig().getInt("queueTimeout");
+        chunkPreloadTime = getConfig().getInt("chunkPreloadTime", 10);
+        teleportTickBudget = getConfig().getInt("teleportTickBudget", 5);
         debug = getConfig().getBoolean("debug", true);
 
         getLogger().log(Level.INFO, "Initialising Teleport Manager");
         tpman = new TeleportManager(this);
+        chunkPreloadManager = new ChunkPreloadManager(this);
+        teleportExecutor = new TeleportExecutor(this);
+        safeLocationResolver = new SafeLocationResolver(this);
 
         getLogger().log(Level.INFO, "Registering Plugin Message Channel");
         new BungeePluginMessageListener(this);
-        getServer().getMessenger().registerOutgoingPluginChannel(this, "sc:runcommand");
+        getServer().getMessenger().registerOutgoingPluginChannel(this, Protocol.RUN_COMMAND);
+        getServer().getMessenger().registerOutgoingPluginChannel(this, Protocol.ERROR);
 
         getLogger().log(Level.INFO, "Registering Event Listener");
         getServer().getPluginManager().registerEvents(getTeleportManager(), this);
+        getServer().getPluginManager().registerEvents(getSafeLocationResolver(), this);
+    }
+
+    public void onDisable() {
+        if (teleportExecutor != null) {
+            teleportExecutor.destroy();
+        }
+        if (chunkPreloadManager != null) {
+            chunkPreloadManager.destroy();
+        }
     }
 
     /**
@@ -50,49 +74,63 @@ public class ServerClustersBukkit extends JavaPlugin {
         return tpman;
     }
 
+    /**
+     * Get the manager which preloads the chunks of teleport targets.
+     */
+    public ChunkPreloadManager getChunkPreloadManager() {
+        return chunkPreloadManager;
+    }
+
+    /**
+     * Get the executor which spreads teleports over multiple ticks.
+     */
+    public TeleportExecutor getTeleportExecutor() {
+        return teleportExecutor;
+    }
+
+    /**
+     * Get the resolver which finds safe locations to teleport players to.
+     */
+    public SafeLocationResolver getSafeLocationResolver() {
+        return safeLocationResolver;
+    }
+
     @Override
     public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
         Player player;
-        String senderName = sender.getName();
+        UUID senderId = null;
         if (sender instanceof Player) {
             player = (Player) sender;
+            senderId = player.getUniqueId();
             if (("warp".equals(cmd.getName()) || "spawn".equals(cmd.getName())) && getTeleportDelay() > 0 && !player.hasPermission("serverclusters.bypass.delay")) {
                 getTeleportManager().addRequest(player.getUniqueId(), System.currentTimeMillis());
             }
         } else if (getServer().getOnlinePlayers().size() > 0) {
-            senderName = "[@]";
             player = getServer().getOnlinePlayers().iterator().next();
         } else {
             sender.sendMessage(ChatColor.RED + "This command can only be run with at least one player online as it relies on plugin messages!");
             return true;
         }
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(senderName);
-        out.writeUTF(cmd.getName());
+        Location location = null;
         if (sender instanceof Entity) {
-            out.writeBoolean(true);
-            out.writeUTF(((Entity) sender).getLocation().getWorld().getName());
-            out.writeDouble(((Entity) sender).getLocation().getX());
-            out.writeDouble(((Entity) sender).getLocation().getY());
-            out.writeDouble(((Entity) sender).getLocation().getZ());
-            out.writeFloat(((Entity) sender).getLocation().getYaw());
-            out.writeFloat(((Entity) sender).getLocation().getPitch());
+            location = ((Entity) sender).getLocation();
         } else if (sender instanceof BlockCommandSender) {
-            out.writeBoolean(true);
-            out.writeUTF(((BlockCommandSender) sender).getBlock().getLocation().getWorld().getName());
-            out.writeDouble(((BlockCommandSender) sender).getBlock().getLocation().getX());
-            out.writeDouble(((BlockCommandSender) sender).getBlock().getLocation().getY());
-            out.writeDouble(((BlockCommandSender) sender).getBlock().getLocation().getZ());
-            out.writeFloat(((BlockCommandSender) sender).getBlock().getLocation().getYaw());
-            out.writeFloat(((BlockCommandSender) sender).getBlock().getLocation().getPitch());
-        } else {
-            out.writeBoolean(false);
+            location = ((BlockCommandSender) sender).getBlock().getLocation();
         }
-        out.writeUTF(StringUtils.join(args, " "));
-        player.sendPluginMessage(this, "sc:runcommand", out.toByteArray());
+        RunCommandMessage message = new RunCommandMessage(senderId, cmd.getName(), location != null ? toLocationData(location) : null, args);
+        player.sendPluginMessage(this, Protocol.RUN_COMMAND, Protocol.encode(message));
         return true;
     }
 
+    /**
+     * Convert a location to be sent in a plugin message
+     * @param location The location
+     * @return The location data
+     */
+    public static LocationData toLocationData(Location location) {
+        return new LocationData(location.getWorld().getName(), location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+    }
+
     public int getTeleportDelay() {
         return teleportDelay;
     }
@@ -106,4 +144,20 @@ public class ServerClustersBukkit extends JavaPlugin {
     public int getQueueTimeout() {
         return queueTimeout;
     }
+
+    /**
+     * Get how long chunks of teleport targets should be kept loaded for players that are still connecting
+     * @return The time in seconds, 0 if chunks shouldn't be preloaded
+     */
+    public int getChunkPreloadTime() {
+        return chunkPreloadTime;
+    }
+
+    /**
+     * Get how much time per tick may be spent on running queued teleports
+     * @return The budget in milliseconds
+     */
+    public int getTeleportTickBudget() {
+        return teleportTickBudget;
+    }
 }
@@ -5,5 +5,5 @@ package de.themoep.serverclusters.bukkit.enums;
  */
 public enum EntryType {
     LOCATION,
-    STRING
+    PLAYER
 }
@@ -0,0 +1,125 @@
+package de.themoep.serverclusters.bukkit.manager;
+
+import de.themoep.serverclusters.bukkit.ServerClustersBukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Loads the chunks of teleport targets before the players arrive and keeps them
+ * loaded for a short time so that the teleport after the join is instant.
+ */
+public class ChunkPreloadManager {
+
+    private final ServerClustersBukkit plugin;
+
+    /**
+     * Map of the chunks that we force loaded to the time when they may get unloaded again
+     */
+    private final Map<PreloadedChunk, Long> preloadedChunks = new HashMap<>();
+
+    public ChunkPreloadManager(ServerClustersBukkit plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Start loading a chunk and keep it loaded for the preload time
+     * @param world  The world of the chunk
+     * @param chunkX The x coordinate of the chunk
+     * @param chunkZ The z coordinate of the chunk
+     */
+    public void preload(World world, int chunkX, int chunkZ) {
+        int preloadTime = plugin.getChunkPreloadTime();
+        if (preloadTime <= 0) {
+            return;
+        }
+        PreloadedChunk key = new PreloadedChunk(world.getName(), chunkX, chunkZ);
+        long until = System.currentTimeMillis() + preloadTime * 1000L;
+        if (preloadedChunks.containsKey(key)) {
+            // Already pinned by us, just extend the time
+            preloadedChunks.put(key, until);
+            return;
+        }
+        world.getChunkAtAsync(chunkX, chunkZ).whenComplete((chunk, ex) -> {
+            if (ex != null) {
+                plugin.getLogger().log(Level.WARNING, "Could not preload chunk " + chunkX + "/" + chunkZ + " in " + world.getName(), ex);
+                return;
+            }
+            if (preloadedChunks.containsKey(key)) {
+                preloadedChunks.put(key, until);
+                return;
+            }
+            if (chunk.isForceLoaded()) {
+                // Something else keeps this chunk loaded, don't touch it
+                return;
+            }
+            chunk.setForceLoaded(true);
+            preloadedChunks.put(key, until);
+            plugin.debug("Preloaded chunk " + chunkX + "/" + chunkZ + " in " + world.getName());
+            scheduleRelease(chunk, key, preloadTime * 20L);
+        });
+    }
+
+    private void scheduleRelease(Chunk chunk, PreloadedChunk key, long ticks) {
+        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+            Long until = preloadedChunks.get(key);
+            if (until == null) {
+                return;
+            }
+            long remaining = until - System.currentTimeMillis();
+            if (remaining > 0) {
+                // The preload time got extended in the meantime
+                scheduleRelease(chunk, key, Math.max(1, remaining / 50));
+                return;
+            }
+            preloadedChunks.remove(key);
+            chunk.setForceLoaded(false);
+            plugin.debug("Released preloaded chunk " + key.x + "/" + key.z + " in " + key.world);
+        }, ticks);
+    }
+
+    /**
+     * Release all chunks that we force loaded
+     */
+    public void destroy() {
+        for (PreloadedChunk key : preloadedChunks.keySet()) {
+            World world = plugin.getServer().getWorld(key.world);
+            if (world != null) {
+                world.getChunkAt(key.x, key.z).setForceLoaded(false);
+            }
+        }
+        preloadedChunks.clear();
+    }
+
+    private static class PreloadedChunk {
+        private final String world;
+        private final int x;
+        private final int z;
+
+        private PreloadedChunk(String world, int x, int z) {
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PreloadedChunk)) {
+                return false;
+            }
+            PreloadedChunk other = (PreloadedChunk) o;
+            return x == other.x && z == other.z && world.equals(other.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * world.hashCode() + x) + z;
+        }
+    }
+}
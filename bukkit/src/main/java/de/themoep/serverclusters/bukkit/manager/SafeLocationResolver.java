@@ -0,0 +1,539 @@
+package de.themoep.serverclusters.bukkit.manager;
+
+import de.themoep.serverclusters.bukkit.ServerClustersBukkit;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockIgniteEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+
+/**
+ * Finds the location where a player would land when teleported to a target. The search runs
+ * asynchronously on snapshots of the chunks and uses their heightmaps instead of checking every block.
+ * If the landing spot is dangerous the columns around it get searched for a safe one.
+ * Results for the same target get cached until a block in the search area of the target changes
+ * or until they expire, whatever happens first.
+ * All methods have to be called on the main thread and the results get completed on it.
+ */
+public class SafeLocationResolver implements Listener {
+
+    private static final int MAX_CACHED_CHUNKS = 256;
+
+    /**
+     * The radius may not be larger than a chunk so that a block change only affects the targets of four chunks
+     */
+    private static final int MAX_RADIUS = 15;
+
+    private static final SafeSpot NO_SAFE_SPOT = new SafeSpot(0, Integer.MIN_VALUE, 0);
+
+    private final ServerClustersBukkit plugin;
+
+    private final int radius;
+
+    /**
+     * Milliseconds after which a cached result gets searched again even if no block change was noticed
+     */
+    private final long cacheTime;
+
+    private final Set<Material> hazards = EnumSet.noneOf(Material.class);
+
+    /**
+     * Map of the chunks to the safe spots of the targets in them
+     */
+    private final Map<ChunkKey, Map<Long, CachedSpot>> cache = new LinkedHashMap<ChunkKey, Map<Long, CachedSpot>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChunkKey, Map<Long, CachedSpot>> eldest) {
+            return size() > MAX_CACHED_CHUNKS;
+        }
+    };
+
+    /**
+     * Chunks with targets that are currently getting resolved. Their generation gets increased when a block
+     * near them changes so that a result that was calculated from outdated snapshots doesn't get cached.
+     */
+    private final Map<ChunkKey, PendingChunk> resolving = new HashMap<>();
+
+    public SafeLocationResolver(ServerClustersBukkit plugin) {
+        this.plugin = plugin;
+        radius = Math.max(0, Math.min(MAX_RADIUS, plugin.getConfig().getInt("safeLocation.radius", 3)));
+        cacheTime = Math.max(1, plugin.getConfig().getInt("safeLocation.cacheTime", 300)) * 1000L;
+        List<String> hazardNames = plugin.getConfig().isSet("safeLocation.hazards")
+                ? plugin.getConfig().getStringList("safeLocation.hazards")
+                : Arrays.asList("LAVA", "FIRE", "CACTUS", "MAGMA_BLOCK");
+        for (String name : hazardNames) {
+            Material material = Material.matchMaterial(name);
+            if (material != null) {
+                hazards.add(material);
+            } else {
+                plugin.getLogger().log(Level.WARNING, "Unknown hazard material " + name + " in safeLocation.hazards!");
+            }
+        }
+    }
+
+    /**
+     * Resolve the location where a player would safely land when teleported to a target
+     * @param target        The target location
+     * @param cacheResult   Whether or not the result should be cached, only useful for fixed targets like warps
+     * @return A future that completes on the main thread with the safe location, the target itself if it
+     *         already was safe or <tt>null</tt> if there is no safe location
+     */
+    public CompletableFuture<Location> resolve(Location target, boolean cacheResult) {
+        World world = target.getWorld();
+        int x = target.getBlockX();
+        int y = target.getBlockY();
+        int z = target.getBlockZ();
+        ChunkKey key = new ChunkKey(world.getUID(), x >> 4, z >> 4);
+        long targetKey = packTarget(x, y, z);
+        long generation = 0;
+        if (cacheResult) {
+            Map<Long, CachedSpot> chunk = cache.get(key);
+            if (chunk != null) {
+                CachedSpot cached = chunk.get(targetKey);
+                if (cached != null && cached.expires > System.currentTimeMillis()) {
+                    return CompletableFuture.completedFuture(toLocation(target, cached.spot));
+                }
+            }
+            PendingChunk pending = resolving.computeIfAbsent(key, k -> new PendingChunk());
+            pending.resolves++;
+            generation = pending.generation;
+        }
+        long startGeneration = generation;
+
+        int minChunkX = (x - radius) >> 4;
+        int maxChunkX = (x + radius) >> 4;
+        int minChunkZ = (z - radius) >> 4;
+        int maxChunkZ = (z + radius) >> 4;
+        List<CompletableFuture<Chunk>> chunkFutures = new ArrayList<>();
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                chunkFutures.add(world.getChunkAtAsync(chunkX, chunkZ));
+            }
+        }
+
+        CompletableFuture<Location> future = new CompletableFuture<>();
+        CompletableFuture.allOf(chunkFutures.toArray(new CompletableFuture<?>[0])).whenComplete((v, ex) -> {
+            if (ex != null) {
+                if (cacheResult) {
+                    finishResolve(key, startGeneration);
+                }
+                future.completeExceptionally(ex);
+                return;
+            }
+            Map<Long, ChunkSnapshot> snapshots = new HashMap<>();
+            for (CompletableFuture<Chunk> chunkFuture : chunkFutures) {
+                Chunk chunk = chunkFuture.join();
+                snapshots.put(packChunk(chunk.getX(), chunk.getZ()), chunk.getChunkSnapshot(true, false, false));
+            }
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                SafeSpot spot;
+                try {
+                    spot = findSafeSpot(snapshots, x, y, z);
+                } catch (RuntimeException e) {
+                    plugin.getServer().getScheduler().runTask(plugin, () -> {
+                        if (cacheResult) {
+                            finishResolve(key, startGeneration);
+                        }
+                        future.completeExceptionally(e);
+                    });
+                    return;
+                }
+                plugin.getServer().getScheduler().runTask(plugin, () -> {
+                    if (cacheResult && finishResolve(key, startGeneration)) {
+                        cache.computeIfAbsent(key, k -> new HashMap<>())
+                                .put(targetKey, new CachedSpot(spot, System.currentTimeMillis() + cacheTime));
+                    }
+                    future.complete(toLocation(target, spot));
+                });
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Mark a resolve of a target in a chunk as done
+     * @param key               The chunk of the target
+     * @param startGeneration   The generation of the chunk when the resolve started
+     * @return Whether or not no block near the chunk changed while resolving, only then the result may be cached
+     */
+    private boolean finishResolve(ChunkKey key, long startGeneration) {
+        PendingChunk pending = resolving.get(key);
+        if (pending == null) {
+            return false;
+        }
+        if (--pending.resolves <= 0) {
+            resolving.remove(key);
+        }
+        return pending.generation == startGeneration;
+    }
+
+    private static Location toLocation(Location target, SafeSpot spot) {
+        if (spot == NO_SAFE_SPOT) {
+            return null;
+        }
+        if (spot.x == target.getBlockX() && spot.y == target.getBlockY() && spot.z == target.getBlockZ()) {
+            return target;
+        }
+        Location location = target.clone();
+        if (spot.x != target.getBlockX() || spot.z != target.getBlockZ()) {
+            // Put the player in the middle of the other column
+            location.setX(spot.x + 0.5);
+            location.setZ(spot.z + 0.5);
+        }
+        location.setY(spot.y);
+        return location;
+    }
+
+    /**
+     * Find the spot where a player can safely stand when falling down from a position.
+     * If that isn't safe the columns in the radius around it get checked, the closest safe one wins.
+     * @param snapshots The snapshots of the chunks in the radius
+     * @param x         The x coordinate of the target
+     * @param y         The y coordinate of the target
+     * @param z         The z coordinate of the target
+     * @return The safe spot or {@link #NO_SAFE_SPOT} if there is none
+     */
+    private SafeSpot findSafeSpot(Map<Long, ChunkSnapshot> snapshots, int x, int y, int z) {
+        int landingY = findLandingY(snapshots, x, y, z);
+        if (landingY != Integer.MIN_VALUE && isSafe(snapshots, x, landingY, z)) {
+            return new SafeSpot(x, landingY, z);
+        }
+        for (int distance = 1; distance <= radius; distance++) {
+            SafeSpot closest = null;
+            int closestDistance = Integer.MAX_VALUE;
+            for (int dx = -distance; dx <= distance; dx++) {
+                for (int dz = -distance; dz <= distance; dz++) {
+                    if (Math.abs(dx) != distance && Math.abs(dz) != distance) {
+                        // Only check the ring, the inner columns were already checked
+                        continue;
+                    }
+                    int squaredDistance = dx * dx + dz * dz;
+                    if (squaredDistance >= closestDistance) {
+                        continue;
+                    }
+                    int columnY = findLandingY(snapshots, x + dx, y, z + dz);
+                    if (columnY != Integer.MIN_VALUE && isSafe(snapshots, x + dx, columnY, z + dz)) {
+                        closest = new SafeSpot(x + dx, columnY, z + dz);
+                        closestDistance = squaredDistance;
+                    }
+                }
+            }
+            if (closest != null) {
+                return closest;
+            }
+        }
+        return NO_SAFE_SPOT;
+    }
+
+    /**
+     * Find the y coordinate where a player would stand on a block when falling down from a position.
+     * If there is no block below the position the player gets put on the highest block of the column.
+     * @return The y coordinate to stand at or {@link Integer#MIN_VALUE} if the column is empty
+     */
+    private static int findLandingY(Map<Long, ChunkSnapshot> snapshots, int x, int y, int z) {
+        ChunkSnapshot snapshot = snapshots.get(packChunk(x >> 4, z >> 4));
+        int chunkX = x & 15;
+        int chunkZ = z & 15;
+        if (y > 0 && y <= 256 && !isAir(snapshot.getBlockType(chunkX, y - 1, chunkZ))) {
+            return y;
+        }
+        // Everything above the heightmap is air, no need to check these blocks
+        int highest = Math.min(snapshot.getHighestBlockYAt(chunkX, chunkZ), 255);
+        int ground = findGround(snapshot, chunkX, Math.min(y - 1, highest), chunkZ);
+        if (ground < 0) {
+            ground = findGround(snapshot, chunkX, highest, chunkZ);
+        }
+        return ground >= 0 ? ground + 1 : Integer.MIN_VALUE;
+    }
+
+    private static int findGround(ChunkSnapshot snapshot, int x, int y, int z) {
+        while (y >= 0 && isAir(snapshot.getBlockType(x, y, z))) {
+            y--;
+        }
+        return y;
+    }
+
+    /**
+     * Check whether or not a player can stand at a position without getting hurt or suffocating
+     */
+    private boolean isSafe(Map<Long, ChunkSnapshot> snapshots, int x, int y, int z) {
+        ChunkSnapshot snapshot = snapshots.get(packChunk(x >> 4, z >> 4));
+        int chunkX = x & 15;
+        int chunkZ = z & 15;
+        return isSafe(y, blockY -> snapshot.getBlockType(chunkX, blockY, chunkZ));
+    }
+
+    /**
+     * Check whether or not a player can stand at a height of a column without getting hurt or suffocating
+     * @param y     The y coordinate to stand at
+     * @param types Function to get the type of the block at a y coordinate of the column
+     */
+    private boolean isSafe(int y, IntFunction<Material> types) {
+        if (y > 0 && y <= 256 && hazards.contains(types.apply(y - 1))) {
+            return false;
+        }
+        for (int blockY = Math.max(0, y); blockY <= y + 1 && blockY <= 255; blockY++) {
+            Material type = types.apply(blockY);
+            if (type.isSolid() || hazards.contains(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether or not a resolved location is still safe to stand at. This looks at the current blocks
+     * of the world and should be called right before teleporting as the location might have been cached or
+     * blocks might have changed since it was resolved. Cached results near it get dropped if it isn't safe.
+     * @param location  The resolved location
+     * @return Whether or not a player can still stand on the floor and in the two blocks at the location,
+     *         <tt>false</tt> if its chunk isn't loaded anymore
+     */
+    public boolean isStillSafe(Location location) {
+        World world = location.getWorld();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        if (!world.isChunkLoaded(x >> 4, z >> 4)) {
+            return false;
+        }
+        boolean safe = y > 0 && y <= 256
+                && !isAir(world.getBlockAt(x, y - 1, z).getType())
+                && isSafe(y, blockY -> world.getBlockAt(x, blockY, z).getType());
+        if (!safe) {
+            invalidate(location.getBlock());
+        }
+        return safe;
+    }
+
+    private static boolean isAir(Material type) {
+        return type == Material.AIR || type == Material.CAVE_AIR || type == Material.VOID_AIR;
+    }
+
+    private static long packChunk(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static long packTarget(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    private void invalidate(Block block) {
+        if (cache.isEmpty() && resolving.isEmpty()) {
+            return;
+        }
+        UUID worldId = block.getWorld().getUID();
+        // Targets in all chunks that the radius around the block reaches might have used it
+        int minChunkX = (block.getX() - radius) >> 4;
+        int maxChunkX = (block.getX() + radius) >> 4;
+        int minChunkZ = (block.getZ() - radius) >> 4;
+        int maxChunkZ = (block.getZ() + radius) >> 4;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                ChunkKey key = new ChunkKey(worldId, chunkX, chunkZ);
+                cache.remove(key);
+                PendingChunk pending = resolving.get(key);
+                if (pending != null) {
+                    pending.generation++;
+                }
+            }
+        }
+    }
+
+    private void invalidate(List<Block> blocks) {
+        for (Block block : blocks) {
+            invalidate(block);
+        }
+    }
+
+    /**
+     * Invalidate the blocks that a piston moves, both where they were and where they end up
+     */
+    private void invalidateMoved(Block piston, List<Block> blocks, BlockFace direction) {
+        invalidate(piston);
+        invalidate(piston.getRelative(direction));
+        for (Block block : blocks) {
+            invalidate(block);
+            invalidate(block.getRelative(direction));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        invalidate(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        invalidate(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        invalidate(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        invalidateMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        invalidateMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        for (BlockState state : event.getBlocks()) {
+            invalidate(state.getBlock());
+        }
+    }
+
+    private static class SafeSpot {
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private SafeSpot(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    private static class CachedSpot {
+        private final SafeSpot spot;
+        private final long expires;
+
+        private CachedSpot(SafeSpot spot, long expires) {
+            this.spot = spot;
+            this.expires = expires;
+        }
+    }
+
+    private static class PendingChunk {
+        /**
+         * How many targets in the chunk are currently getting resolved
+         */
+        private int resolves = 0;
+
+        /**
+         * Gets increased every time a block near the chunk changes
+         */
+        private long generation = 0;
+    }
+
+    private static class ChunkKey {
+        private final UUID worldId;
+        private final int x;
+        private final int z;
+
+        private ChunkKey(UUID worldId, int x, int z) {
+            this.worldId = worldId;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) o;
+            return x == other.x && z == other.z && worldId.equals(other.worldId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * worldId.hashCode() + x) + z;
+        }
+    }
+}
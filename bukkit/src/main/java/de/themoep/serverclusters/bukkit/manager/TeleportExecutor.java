@@ -0,0 +1,165 @@
+package de.themoep.serverclusters.bukkit.manager;
+
+import de.themoep.serverclusters.bukkit.ServerClustersBukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+
+/**
+ * Runs teleports on the main thread but only as many per tick as fit into the tick budget.
+ * Teleports whose deadline is the closest get run first, the rest waits for the next tick.
+ * The submitted teleports have to do the actual, synchronous teleport so that its whole cost
+ * is counted, anything asynchronous like loading chunks should be done before submitting them.
+ * All methods have to be called on the main thread.
+ */
+public class TeleportExecutor {
+
+    private final ServerClustersBukkit plugin;
+
+    private final PriorityQueue<ScheduledTeleport> queue = new PriorityQueue<>();
+
+    private long sequence = 0;
+
+    private BukkitTask task = null;
+
+    private int maxQueueDepth = 0;
+    private long executedCount = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+    private long busyTicks = 0;
+
+    public TeleportExecutor(ServerClustersBukkit plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Queue a teleport to run in one of the next ticks
+     * @param deadline  The time in milliseconds until which the teleport should have been run,
+     *                  teleports with an earlier deadline get run first
+     * @param teleport  The teleport to run
+     */
+    public void submit(long deadline, Runnable teleport) {
+        queue.add(new ScheduledTeleport(deadline, sequence++, teleport));
+        if (queue.size() > maxQueueDepth) {
+            maxQueueDepth = queue.size();
+        }
+        if (task == null) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 0L, 1L);
+        }
+    }
+
+    private void tick() {
+        long start = System.nanoTime();
+        long budget = plugin.getTeleportTickBudget() * 1000000L;
+        int ran = 0;
+        // Always run at least one teleport so that the queue can't get stuck with a budget of 0
+        while (!queue.isEmpty() && (ran == 0 || System.nanoTime() - start < budget)) {
+            ScheduledTeleport teleport = queue.poll();
+            long waitTime = System.currentTimeMillis() - teleport.submitted;
+            totalWaitTime += waitTime;
+            if (waitTime > maxWaitTime) {
+                maxWaitTime = waitTime;
+            }
+            try {
+                teleport.runnable.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while running a queued teleport", e);
+            }
+            executedCount++;
+            ran++;
+        }
+        busyTicks++;
+        if (!queue.isEmpty()) {
+            plugin.debug("Ran " + ran + " teleports in " + (System.nanoTime() - start) / 1000 + "us, " + queue.size() + " are left for the next tick");
+        } else {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Get the amount of teleports that are waiting to be run
+     * @return The current queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the highest amount of teleports that were waiting at the same time
+     * @return The maximum queue depth
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get the amount of teleports that were run
+     * @return The amount of run teleports
+     */
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    /**
+     * Get the average time that teleports waited in the queue
+     * @return The average wait time in milliseconds
+     */
+    public double getAverageWaitTime() {
+        return executedCount > 0 ? (double) totalWaitTime / executedCount : 0;
+    }
+
+    /**
+     * Get the longest time that a teleport waited in the queue
+     * @return The maximum wait time in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Get the amount of ticks in which teleports were run
+     * @return The amount of ticks
+     */
+    public long getBusyTicks() {
+        return busyTicks;
+    }
+
+    /**
+     * Stop running queued teleports and log the statistics
+     */
+    public void destroy() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (!queue.isEmpty()) {
+            plugin.getLogger().log(Level.WARNING, "Dropped " + queue.size() + " queued teleports!");
+            queue.clear();
+        }
+        plugin.debug("Teleport executor ran " + executedCount + " teleports in " + busyTicks + " ticks."
+                + " Max queue depth: " + maxQueueDepth
+                + ", average wait: " + String.format("%.2f", getAverageWaitTime()) + "ms"
+                + ", max wait: " + maxWaitTime + "ms");
+    }
+
+    private static class ScheduledTeleport implements Comparable<ScheduledTeleport> {
+        private final long deadline;
+        private final long sequence;
+        private final long submitted = System.currentTimeMillis();
+        private final Runnable runnable;
+
+        private ScheduledTeleport(long deadline, long sequence, Runnable runnable) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(ScheduledTeleport o) {
+            int result = Long.compare(deadline, o.deadline);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -1,18 +1,19 @@
 package de.themoep.serverclusters.bukkit.manager;
 
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.serverclusters.bukkit.enums.EntryType;
 import de.themoep.serverclusters.bukkit.QueueEntry;
 import de.themoep.serverclusters.bukkit.ServerClustersBukkit;
+import de.themoep.serverclusters.common.protocol.CancelTeleportMessage;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.ReadyMessage;
+import de.themoep.serverclusters.common.util.TimingWheel;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
-import org.bukkit.Material;
-import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
@@ -20,15 +21,14 @@ import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerPickupItemEvent;
-import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
 
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
 /**
@@ -38,30 +38,71 @@ public class TeleportManager implements Listener {
 
     private final ServerClustersBukkit plugin;
 
-    private HashMap<String, QueueEntry> tpQueue = new HashMap<>();
-    private Map<UUID, Long> tpRequests = new HashMap<>();
+    private final Map<UUID, QueueEntry> tpQueue = new HashMap<>();
+    private final Map<UUID, Long> tpRequests = new HashMap<>();
 
-    private BukkitTask teleportTask = null;
+    /**
+     * Expires the entries of the teleport queue after the queue timeout
+     */
+    private final TimingWheel<UUID> queueExpiry;
+
+    /**
+     * Expires teleport requests whose teleport never arrived
+     */
+    private final TimingWheel<UUID> requestExpiry;
+
+    /**
+     * Advances the timing wheels while they contain entries
+     */
+    private BukkitTask expiryTask = null;
+
+    /**
+     * Only registered while there are queued or delayed teleports
+     */
+    private final TeleportMoveListener moveListener = new TeleportMoveListener(this);
+    private boolean moveListenerRegistered = false;
 
     public TeleportManager(ServerClustersBukkit plugin) {
         this.plugin = plugin;
-        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, "sc:cancelteleport");
+        queueExpiry = new TimingWheel<>(64, 1000, playerId -> {
+            if (tpQueue.remove(playerId) != null) {
+                plugin.debug("Queue entry for " + playerId + " timed out");
+                updateMoveListener();
+            }
+        });
+        requestExpiry = new TimingWheel<>(64, 1000, playerId -> {
+            tpRequests.remove(playerId);
+            updateMoveListener();
+        });
+        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, Protocol.CANCEL_TELEPORT);
+        plugin.getServer().getMessenger().registerOutgoingPluginChannel(plugin, Protocol.READY);
     }
 
-    @EventHandler
-    public void onPlayerMove(PlayerMoveEvent event) {
-        checkQueue(event, event.getPlayer());
-        if (sameBlock(event.getTo(), event.getFrom())) {
-            return;
+    /**
+     * Called by the {@link TeleportMoveListener} when a player changed his position
+     * @param event         The move event
+     * @param player        The player that moved
+     * @param changedBlock  Whether or not the player moved to another block
+     */
+    void onMove(Cancellable event, Player player, boolean changedBlock) {
+        checkQueue(event, player);
+        if (changedBlock) {
+            checkForCancel(player);
         }
-        checkForCancel(event.getPlayer());
     }
 
-    private boolean sameBlock(Location to, Location from) {
-        return to.getWorld() == from.getWorld()
-                && to.getBlockX() == from.getBlockX()
-                && to.getBlockY() == from.getBlockY()
-                && to.getBlockZ() == from.getBlockZ();
+    /**
+     * Register the move listener if there are queued or delayed teleports and unregister it if not
+     */
+    private void updateMoveListener() {
+        boolean active = !tpQueue.isEmpty() || !tpRequests.isEmpty();
+        if (active && !moveListenerRegistered) {
+            plugin.getServer().getPluginManager().registerEvents(moveListener, plugin);
+            moveListenerRegistered = true;
+        } else if (!active && moveListenerRegistered) {
+            HandlerList.unregisterAll(moveListener);
+            moveListenerRegistered = false;
+        }
     }
 
     @EventHandler
@@ -86,14 +127,14 @@ public class TeleportManager implements Listener {
     }
 
     private void checkForCancel(Player player) {
-        if (plugin.getTeleportDelay() <= 0) {
+        if (plugin.getTeleportDelay() <= 0 || tpRequests.isEmpty()) {
             return;
         }
 
-        if (tpRequests.containsKey(player.getUniqueId())) {
-            if (tpRequests.get(player.getUniqueId()) + plugin.getTeleportDelay() * 1000 < System.currentTimeMillis()) {
-                cancelTeleport(player);
-            }
+        Long requested = tpRequests.get(player.getUniqueId());
+        // Only cancel while the delay is still running, afterwards the teleport already happened
+        if (requested != null && requested + plugin.getTeleportDelay() * 1000L > System.currentTimeMillis()) {
+            cancelTeleport(player);
         }
     }
 
@@ -113,16 +154,25 @@ public class TeleportManager implements Listener {
     }
 
     private void checkQueue(Cancellable event, Player player) {
-        if (isQueued(player, 60)) {
+        if (isQueued(player)) {
             event.setCancelled(true);
         }
     }
 
     private void cancelTeleport(Player player) {
-        tpRequests.remove(player.getUniqueId());
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(player.getName());
-        player.sendPluginMessage(plugin, "sc:teleportDelay", out.toByteArray());
+        removeRequest(player.getUniqueId());
+        player.sendPluginMessage(plugin, Protocol.CANCEL_TELEPORT, Protocol.encode(new CancelTeleportMessage(player.getUniqueId())));
+    }
+
+    /**
+     * Tell the proxy that the pending teleport of a player was run and that he is ready
+     * @param player    The player
+     * @param success   Whether or not the player was teleported
+     */
+    private void sendReady(Player player, boolean success) {
+        if (player.isOnline()) {
+            player.sendPluginMessage(plugin, Protocol.READY, Protocol.encode(new ReadyMessage(player.getUniqueId(), success)));
+        }
     }
 
     /**
@@ -130,99 +180,193 @@ public class TeleportManager implements Listener {
      */
     @EventHandler
     public void onPlayerLogin(PlayerJoinEvent event) {
-        if (isQueued(event.getPlayer())) {
-            QueueEntry entry = getQueueEntry(event.getPlayer().getName());
-            if (entry != null) {
-                plugin.getServer().getScheduler().runTask(plugin, () -> {
-                    if (runEntry(event.getPlayer(), entry) < 0) {
-                        addQueueEntry(event.getPlayer().getName(), entry.copy());
-                    }
-                });
-            }
+        QueueEntry entry = getQueueEntry(event.getPlayer().getUniqueId());
+        if (entry != null) {
+            runEntry(event.getPlayer(), entry);
         }
     }
 
+    /**
+     * Get the deadline of a teleport for the teleport executor
+     * @param requested The time at which the teleport was requested
+     * @return The time until which the teleport should be run
+     */
+    private long getDeadline(long requested) {
+        return requested + plugin.getQueueTimeout() * 1000L;
+    }
+
     /**
      * @return byte: 1 if the player was teleported,
-     * 0 if the entry type was unsupported
-     * -1 if the player or target was not found was not found or is null
+     * 0 if the entry type was unsupported or the target was not found
+     * -1 if the player is not online anymore
      */
     private byte runEntry(Player player, QueueEntry entry) {
+        long deadline = getDeadline(entry.getTimeStamp());
         if (entry.getType() == EntryType.LOCATION) {
             Location entryLocation = entry.getLocation();
             if (entryLocation != null) {
-                return teleport(player, entryLocation);
+                return teleport(player, entryLocation, deadline);
             }
-        } else if (entry.getType() == EntryType.STRING) {
-            String targetName = entry.getString();
-            if (targetName != null) {
-                return teleport(player, plugin.getServer().getPlayer(targetName));
+        } else if (entry.getType() == EntryType.PLAYER) {
+            UUID targetId = entry.getTargetId();
+            if (targetId != null) {
+                return teleport(player, plugin.getServer().getPlayer(targetId), deadline);
             }
         }
+        removeQueueEntry(player.getUniqueId());
+        sendReady(player, false);
         return 0;
     }
 
     /**
      * Teleports a player to a target location.
      * If the player is not online it will queue it 'til he is online and teleport him then.
-     * @param playerName The name of the player to teleport
-     * @param target     The location where to teleport the player to
+     * @param playerId The UUID of the player to teleport
+     * @param target   The location where to teleport the player to
      */
-    public void teleport(String playerName, Location target) {
-        Player player = plugin.getServer().getPlayer(playerName);
-        if (teleport(player, target) < 0) {
-            addQueueEntry(playerName, new QueueEntry(playerName, target));
+    public void teleport(UUID playerId, Location target) {
+        Player player = plugin.getServer().getPlayer(playerId);
+        if (player != null && player.isOnline()) {
+            teleport(player, target);
+        } else {
+            addQueueEntry(playerId, new QueueEntry(playerId, target));
         }
     }
 
+    /**
+     * Teleports multiple players to a target location. The safe location is only searched once
+     * and the teleports of all players that are online get handed to the teleport executor, the others get queued.
+     * @param playerIds The UUIDs of the players to teleport
+     * @param target    The location where to teleport the players to
+     */
+    public void teleport(List<UUID> playerIds, Location target) {
+        if (playerIds.size() == 1) {
+            teleport(playerIds.get(0), target);
+            return;
+        }
+        long deadline = getDeadline(System.currentTimeMillis());
+        // The safe location only gets searched once, players that can fly get adjusted individually
+        plugin.getSafeLocationResolver().resolve(target, true).whenComplete((safe, ex) -> {
+            for (UUID playerId : playerIds) {
+                Player player = plugin.getServer().getPlayer(playerId);
+                if (player != null && player.isOnline()) {
+                    Location loc = ex == null ? adjustForFlying(player, target, safe) : null;
+                    handleSafeLocation(player, target, "", loc, ex, deadline, true);
+                } else {
+                    addQueueEntry(playerId, new QueueEntry(playerId, target));
+                }
+            }
+        });
+    }
+
     /**
      * Teleports a player to a target location.
      * @param player The player to teleport
      * @param target The location to teleport to
-     * @return byte: 1 if the player was teleported,
+     * @return byte: 1 if the teleport was started,
      * -1 if the player or target was not found was not found or is null
      */
     public byte teleport(Player player, Location target) {
-        if (target != null && player != null && player.isOnline() && player.getLastPlayed() + 100 < System.currentTimeMillis()) {
-            target.getWorld().getChunkAtAsync(target).whenComplete((c, ex) -> {
-                tpRequests.remove(player.getUniqueId());
-                if (ex != null) {
-                    player.sendMessage(ChatColor.RED + "Error");
-                    plugin.getLogger().log(Level.SEVERE, "Could not teleport " + player.getName() + " to ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")", ex);
-                    return;
-                }
-                Location loc = makeTeleportSafe(player, target);
-                if (loc == null) {
-                    plugin.getLogger().warning("Target location could not be made save to teleport " + player.getName() + " to ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")");
-                    return;
-                }
-                player.teleportAsync(target).thenAccept(success -> {
-                    if (success) {
-                        player.sendMessage(ChatColor.GREEN + "Teleportiert!");
-                        plugin.debug("Teleported " + player.getName() + " to ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")");
-                    } else {
-                        player.sendMessage(ChatColor.RED + "Fehler beim teleportieren!");
-                        plugin.getLogger().severe("Unable to teleport " + player.getName() + " to ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")");
-
-                    }
-                });
-                removeQueueEntry(player.getName());
-});
+        return teleport(player, target, getDeadline(System.currentTimeMillis()));
+    }
+
+    /**
+     * Teleports a player to a target location. The safe location gets searched first,
+     * the actual teleport then gets handed to the teleport executor.
+     * @param player    The player to teleport
+     * @param target    The location to teleport to
+     * @param deadline  The time until which the teleport should have been run
+     * @return byte: 1 if the teleport was started,
+     * -1 if the player or target was not found was not found or is null
+     */
+    private byte teleport(Player player, Location target, long deadline) {
+        if (target != null && player != null && player.isOnline()) {
+            findSafeLocation(player, target, true).whenComplete((loc, ex) -> handleSafeLocation(player, target, "", loc, ex, deadline, true));
             return 1;
         }
         return -1;
     }
 
+    /**
+     * Handle the result of the safe location search for a teleport
+     * and hand the teleport to the executor if one was found.
+     * @param player        The player to teleport
+     * @param target        The original target location
+     * @param targetName    The name of the target to include in messages, prefixed with a space
+     * @param loc           The safe location or <tt>null</tt> if there is none
+     * @param ex            The exception that occurred while searching or <tt>null</tt>
+     * @param deadline      The time until which the teleport should have been run
+     * @param retry         Whether or not to search again if the location isn't safe anymore when teleporting
+     */
+    private void handleSafeLocation(Player player, Location target, String targetName, Location loc, Throwable ex, long deadline, boolean retry) {
+        removeRequest(player.getUniqueId());
+        removeQueueEntry(player.getUniqueId());
+        if (!player.isOnline()) {
+            return;
+        }
+        if (ex != null) {
+            player.sendMessage(ChatColor.RED + "Error");
+            plugin.getLogger().log(Level.SEVERE, "Could not teleport " + player.getName() + " to" + targetName + " ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")", ex);
+            sendReady(player, false);
+            return;
+        }
+        if (loc == null) {
+            player.sendMessage(ChatColor.RED + "No safe location found!");
+            plugin.getLogger().warning("Target location could not be made save to teleport " + player.getName() + " to" + targetName + " ([" + target.getWorld().getName() + "] " + target.getX() + ", " + target.getY() + ", " + target.getZ() + ")");
+            sendReady(player, false);
+            return;
+        }
+        plugin.getTeleportExecutor().submit(deadline, () -> finishTeleport(player, target, targetName, loc, deadline, retry));
+    }
+
+    /**
+     * Actually teleport a player to the safe location that was found for him. This is run by the teleport
+     * executor and teleports synchronously so that the whole teleport counts against the tick budget.
+     * The location gets checked again first as it might come from the cache or the blocks changed since.
+     * @param player        The player to teleport
+     * @param target        The original target location
+     * @param targetName    The name of the target to include in messages, prefixed with a space
+     * @param loc           The safe location
+     * @param deadline      The time until which the teleport should have been run
+     * @param retry         Whether or not to search again if the location isn't safe anymore
+     */
+    private void finishTeleport(Player player, Location target, String targetName, Location loc, long deadline, boolean retry) {
+        if (!player.isOnline()) {
+            return;
+        }
+        // Flying players get teleported to the target itself, no need to check the ground
+        if (!player.isFlying() && !plugin.getSafeLocationResolver().isStillSafe(loc)) {
+            if (retry) {
+                plugin.debug("Safe location for " + player.getName() + " isn't safe anymore, searching again");
+                findSafeLocation(player, target, false).whenComplete((newLoc, ex) -> handleSafeLocation(player, target, targetName, newLoc, ex, deadline, false));
+            } else {
+                handleSafeLocation(player, target, targetName, null, null, deadline, false);
+            }
+            return;
+        }
+        boolean success = player.teleport(loc);
+        sendReady(player, success);
+        if (success) {
+            player.sendMessage(ChatColor.GREEN + "Teleportiert!");
+            plugin.debug("Teleported " + player.getName() + " to" + targetName + " ([" + loc.getWorld().getName() + "] " + loc.getX() + ", " + loc.getY() + ", " + loc.getZ() + ")");
+        } else {
+            player.sendMessage(ChatColor.RED + "Fehler beim teleportieren!");
+            plugin.getLogger().severe("Unable to teleport " + player.getName() + " to" + targetName + " ([" + loc.getWorld().getName() + "] " + loc.getX() + ", " + loc.getY() + ", " + loc.getZ() + ")");
+        }
+    }
+
     /**
      * Teleports a player to a target player.
      * If the player is not online it will queue it 'til he is online and teleport him then.
-     * @param playerName Name of the player to teleport
-     * @param targetName Name of the player to teleport to
+     * @param playerId UUID of the player to teleport
+     * @param targetId UUID of the player to teleport to
      */
-    public void teleport(String playerName, String targetName) {
-        Player player = plugin.getServer().getPlayer(playerName);
-        if (teleport(player, plugin.getServer().getPlayer(targetName)) < 0) {
-            addQueueEntry(playerName, new QueueEntry(playerName, targetName));
+    public void teleport(UUID playerId, UUID targetId) {
+        Player player = plugin.getServer().getPlayer(playerId);
+        if (player != null && player.isOnline()) {
+            teleport(player, plugin.getServer().getPlayer(targetId));
+        } else {
+            addQueueEntry(playerId, new QueueEntry(playerId, targetId));
         }
     }
 
@@ -230,36 +374,50 @@ public class TeleportManager implements Listener {
      * Teleports a player to a target player.
      * @param player The player to teleport
      * @param target The player to teleport to
-     * @return byte: 1 if the player was teleported,
-     * -1 if the player or the target was not found or is null
+     * @return byte: 1 if the teleport was started,
+     * 0 if the target was not found,
+     * -1 if the player was not found or is null
      */
     public byte teleport(Player player, Player target) {
-        if (target != null && target.isOnline() && player != null && player.isOnline() && player.getLastPlayed() + 100 < System.currentTimeMillis()) {
-            Location loc = makeTeleportSafe(player, target.getLocation());
-            tpRequests.remove(player.getUniqueId());
-            if (loc == null) {
-                player.sendMessage(ChatColor.RED + "Error");
-                loc = target.getLocation();
-                plugin.getLogger().log(Level.SEVERE, "Could not teleport " + player.getName() + " to " + target.getName() + " ([" + loc.getWorld().getName() + "] " + loc.getX() + ", " + loc.getY() + ", " + loc.getZ() + ") as it was unsafe!");
-                return 0;
-            }
-            player.teleport(loc);
-            removeQueueEntry(player.getName());
-            player.sendMessage(ChatColor.GREEN + "Teleportiert!");
-            plugin.debug("Teleported " + player.getName() + " to " + target.getName() + " ([" + loc.getWorld().getName() + "] " + loc.getX() + ", " + loc.getY() + ", " + loc.getZ() + ")");
-            return 1;
+        return teleport(player, target, getDeadline(System.currentTimeMillis()));
+    }
+
+    /**
+     * Teleports a player to a target player. The safe location gets searched first,
+     * the actual teleport then gets handed to the teleport executor.
+     * @param player    The player to teleport
+     * @param target    The player to teleport to
+     * @param deadline  The time until which the teleport should have been run
+     * @return byte: 1 if the teleport was started,
+     * 0 if the target was not found,
+     * -1 if the player was not found or is null
+     */
+    private byte teleport(Player player, Player target, long deadline) {
+        if (player == null || !player.isOnline()) {
+            return -1;
         }
-        return -1;
+        removeRequest(player.getUniqueId());
+        removeQueueEntry(player.getUniqueId());
+        if (target == null || !target.isOnline()) {
+            player.sendMessage(ChatColor.RED + "Der Spieler ist nicht mehr online!");
+            sendReady(player, false);
+            return 0;
+        }
+        Location targetLocation = target.getLocation();
+        // Players move around so caching their location is pointless
+        findSafeLocation(player, targetLocation, false).whenComplete((loc, ex) -> handleSafeLocation(player, targetLocation, " " + target.getName(), loc, ex, deadline, true));
+        return 1;
     }
 
     /**
      * Get if a player is queued for teleport
-     * @param playerName Name of the player to check
+     * @param playerId UUID of the player to check
      * @return boolean: true if queued,
      * false if not
      */
-    public boolean isQueued(String playerName) {
-        return tpQueue.containsKey(playerName);
+    public boolean isQueued(UUID playerId) {
+        // Nearly all checks happen while nobody is queued, skip hashing the UUID then
+        return !tpQueue.isEmpty() && tpQueue.containsKey(playerId);
     }
 
     /**
@@ -269,7 +427,7 @@ public class TeleportManager implements Listener {
      * false if not
      */
     public boolean isQueued(Player player) {
-        return isQueued(player.getName());
+        return isQueued(player.getUniqueId());
     }
 
     /**
@@ -279,103 +437,124 @@ public class TeleportManager implements Listener {
      * @return boolean: true if queued in the last x seconds, false if not
      */
     public boolean isQueued(Player player, int x) {
-        return isQueued(player.getName(), x);
+        return isQueued(player.getUniqueId(), x);
     }
 
     /**
      * Get if a player was queued for teleport in the last x seconds and removes older entries
-     * @param playerName Name of the player to check
-     * @param x          How far back the player has to be gotten queued
+     * @param playerId UUID of the player to check
+     * @param x        How far back the player has to be gotten queued
      * @return boolean: true if queued in the last x seconds, false if not
      */
-    public boolean isQueued(String playerName, int x) {
-        if (isQueued(playerName)) {
-            QueueEntry entry = getQueueEntry(playerName);
+    public boolean isQueued(UUID playerId, int x) {
+        if (isQueued(playerId)) {
+            QueueEntry entry = getQueueEntry(playerId);
             if (entry != null && entry.getTimeStamp() + x * 1000 > System.currentTimeMillis()) {
                 return true;
             }
-            removeQueueEntry(playerName);
+            removeQueueEntry(playerId);
         }
         return false;
     }
 
     /**
      * Get the queue entry of a player
-     * @param playerName The name of the player
+     * @param playerId The UUID of the player
      * @return The full QueueEntry to the player, null if he doesn't have one
      */
-    public QueueEntry getQueueEntry(String playerName) {
-        return tpQueue.get(playerName);
+    public QueueEntry getQueueEntry(UUID playerId) {
+        return tpQueue.get(playerId);
     }
 
     /**
-     * Add a new player entry to the teleport queue
-     * @param playerName The name of the player to queue
+     * Add a new player entry to the teleport queue. The entry gets run when the player joins
+     * and removed if he didn't join before the queue timeout.
+     * @param playerId The UUID of the player to queue
      * @param entry The QueueEntry for the target
      */
-    private void addQueueEntry(String playerName, QueueEntry entry) {
-        tpQueue.put(playerName, entry);
-        plugin.debug("Added new queue entry for " + entry.getPlayerName());
-        if (teleportTask == null) {
-            plugin.debug("No teleport task running. Starting a new one!");
-            teleportTask = new BukkitRunnable() {
-                @Override
-                public void run() {
-                    plugin.debug("Running teleport task. Queue contains " + tpQueue.size() + " entries");
-                    // Check all entries if they can teleport
-                    for (Iterator<QueueEntry> i = tpQueue.values().iterator(); i.hasNext(); ) {
-                        QueueEntry entry = i.next();
-                        Player player = plugin.getServer().getPlayer(entry.getPlayerName());
-                        if ((player != null && player.isOnline() && runEntry(player, entry) >= 0)
-                                || entry.getTimeStamp() + plugin.getQueueTimeout() * 1000 < System.currentTimeMillis()) {
-                            i.remove();
-                        }
-                    }
-
-                    // If the queue is empty, cancel the task
-                    if (tpQueue.isEmpty()) {
-                        plugin.debug("Queue is empty, cancelling the teleport task!");
-                        teleportTask = null;
-                        cancel();
-                    }
-                }
-            }.runTaskTimer(plugin, 20L, 20L);
-        }
+    private void addQueueEntry(UUID playerId, QueueEntry entry) {
+        tpQueue.put(playerId, entry);
+        queueExpiry.schedule(playerId, plugin.getQueueTimeout() * 1000L);
+        startExpiryTask();
+        updateMoveListener();
+        plugin.debug("Added new queue entry for " + entry.getPlayerId());
     }
 
     /**
      * Remove an entry for a player from the teleport queue
-     * @param playerName The name of the player to remove
+     * @param playerId The UUID of the player to remove
      */
-    private QueueEntry removeQueueEntry(String playerName) {
-        return tpQueue.remove(playerName);
+    private QueueEntry removeQueueEntry(UUID playerId) {
+        QueueEntry entry = tpQueue.remove(playerId);
+        if (entry != null) {
+            queueExpiry.cancel(playerId);
+            updateMoveListener();
+        }
+        return entry;
     }
 
     public void addRequest(UUID playerId, long time) {
         tpRequests.put(playerId, time);
+        requestExpiry.schedule(playerId, (plugin.getTeleportDelay() + plugin.getQueueTimeout()) * 1000L);
+        startExpiryTask();
+        updateMoveListener();
     }
 
-    public Location makeTeleportSafe(Player player, Location target) {
-        if (target != null && player != null && player.isOnline()) {
-            if (!player.isFlying() && target.getBlock().getRelative(BlockFace.DOWN).getType() == Material.AIR) {
-                if (player.getAllowFlight() || player.getGameMode() == GameMode.CREATIVE) {
-                    player.setFlying(true);
-                } else {
-                    while (target.getBlock().getType() == Material.AIR && target.getY() >= 0) {
-                        target.subtract(0, 1, 0);
-                    }
-                    if (target.getBlock().getType() == Material.AIR) {
-                        target.setY(target.getWorld().getHighestBlockAt(target).getY());
-                    }
-                    target = target.getY() > 0 ? target.add(0, 1, 0) : null;
-                    if (target == null) {
-                        player.sendMessage(ChatColor.RED + "No safe location found!");
-                        return null;
-                    }
-                }
+    private void removeRequest(UUID playerId) {
+        if (tpRequests.remove(playerId) != null) {
+            requestExpiry.cancel(playerId);
+            updateMoveListener();
+        }
+    }
+
+    /**
+     * Start the task which advances the timing wheels if it isn't running yet.
+     * It stops itself once both wheels are empty.
+     */
+    private void startExpiryTask() {
+        if (expiryTask != null) {
+            return;
+        }
+        expiryTask = plugin.getServer().getScheduler().runTaskTimer(plugin, () -> {
+            queueExpiry.advance();
+            requestExpiry.advance();
+            if (queueExpiry.isEmpty() && requestExpiry.isEmpty()) {
+                expiryTask.cancel();
+                expiryTask = null;
             }
+        }, 20L, 20L);
+    }
+
+    /**
+     * Find the location where a player can safely be teleported to. Players that can fly
+     * start flying at the target instead of getting moved to the ground.
+     * @param player        The player to teleport
+     * @param target        The target location
+     * @param cacheResult   Whether or not the safe location of the target should be cached
+     * @return A future that completes on the main thread with the safe location or <tt>null</tt> if there is none
+     */
+    private CompletableFuture<Location> findSafeLocation(Player player, Location target, boolean cacheResult) {
+        if (player.isFlying()) {
+            return CompletableFuture.completedFuture(target);
+        }
+        return plugin.getSafeLocationResolver().resolve(target, cacheResult).thenApply(loc -> adjustForFlying(player, target, loc));
+    }
+
+    /**
+     * Players that can fly start flying at the target instead of getting moved to the safe location.
+     * @param player    The player to teleport
+     * @param target    The target location
+     * @param safe      The safe location that was found for the target or <tt>null</tt>
+     * @return The location to teleport the player to or <tt>null</tt> if there is none
+     */
+    private Location adjustForFlying(Player player, Location target, Location safe) {
+        if (player.isFlying()) {
+            return target;
+        }
+        if (safe != target && (player.getAllowFlight() || player.getGameMode() == GameMode.CREATIVE)) {
+            player.setFlying(true);
             return target;
         }
-        return null;
+        return safe;
     }
 }
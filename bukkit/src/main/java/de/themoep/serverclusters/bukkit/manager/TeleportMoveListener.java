@@ -0,0 +1,38 @@
+package de.themoep.serverclusters.bukkit.manager;
+
+import org.bukkit.Location;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerMoveEvent;
+
+/**
+ * Listens to the movement of players while there are queued or delayed teleports.
+ * The {@link TeleportManager} only registers it while it has entries so that the
+ * move events don't cost anything when nobody is teleporting.
+ */
+public class TeleportMoveListener implements Listener {
+
+    private final TeleportManager manager;
+
+    TeleportMoveListener(TeleportManager manager) {
+        this.manager = manager;
+    }
+
+    @EventHandler
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        // Most move events only change the rotation of the head
+        if (to == null || from.getX() == to.getX() && from.getY() == to.getY() && from.getZ() == to.getZ()) {
+            return;
+        }
+        manager.onMove(event, event.getPlayer(), !sameBlock(from, to));
+    }
+
+    private boolean sameBlock(Location from, Location to) {
+        return to.getWorld() == from.getWorld()
+                && to.getBlockX() == from.getBlockX()
+                && to.getBlockY() == from.getBlockY()
+                && to.getBlockZ() == from.getBlockZ();
+    }
+}
@@ -7,6 +7,7 @@ import net.md_5.bungee.api.connection.ProxiedPlayer;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 import java.util.logging.Level;
 
 /**
@@ -32,7 +33,15 @@ public class BukkitCommandExecutor {
         return true;
     }
 
-    public boolean execute(String commandName, String senderName, LocationInfo location, String[] args) {
+    /**
+     * Execute a command that was run on a server
+     * @param commandName   The name of the command
+     * @param senderId      The UUID of the player that ran it, <tt>null</tt> if it was the console
+     * @param location      The location of the sender on the server
+     * @param args          The arguments of the command
+     * @return <tt>true</tt> if the command was executed; <tt>false</tt> if not
+     */
+    public boolean execute(String commandName, UUID senderId, LocationInfo location, String[] args) {
         BukkitCommand command = commandMap.get(commandName);
 
         if (command == null) {
@@ -40,14 +49,14 @@ public class BukkitCommandExecutor {
         }
 
         CommandSender sender = null;
-        if ("[@]".equalsIgnoreCase(senderName)) {
+        if (senderId == null) {
             sender = plugin.getProxy().getConsole();
         } else {
-            sender = plugin.getProxy().getPlayer(senderName);
+            sender = plugin.getProxy().getPlayer(senderId);
         }
 
         if (sender == null) {
-            plugin.getLogger().log(Level.WARNING, "Error while trying to run " + commandName + " as " + senderName + "! Sender was not found?");
+            plugin.getLogger().log(Level.WARNING, "Error while trying to run " + commandName + " as " + senderId + "! Sender was not found?");
             return false;
         }
 
@@ -1,22 +1,33 @@
 package de.themoep.serverclusters.bungee;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.InvalidPropertiesFormatException;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
-import de.themoep.serverclusters.bungee.enums.Backend;
-import de.themoep.serverclusters.bungee.storage.MysqlStorage;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import de.themoep.serverclusters.bungee.balancing.LeastPlayersBalancer;
+import de.themoep.serverclusters.bungee.balancing.ServerBalancer;
+import de.themoep.serverclusters.bungee.enums.BalancingStrategy;
+import de.themoep.serverclusters.bungee.storage.SharedValueStorage;
 import de.themoep.serverclusters.bungee.storage.ValueStorage;
 import de.themoep.serverclusters.bungee.storage.YamlStorage;
 import net.md_5.bungee.api.ChatColor;
@@ -28,6 +39,16 @@ import net.md_5.bungee.config.Configuration;
 
 public class Cluster implements Comparable<Cluster> {
 
+    /**
+     * Id in the logout cache for players that don't have a logout server on this cluster
+     */
+    private static final short NO_LOGOUT_SERVER = -1;
+
+    /**
+     * Used when all servers of the cluster reached their soft cap
+     */
+    private static final ServerBalancer OVERFLOW_BALANCER = new LeastPlayersBalancer();
+
     private ServerClusters plugin = null;
 
     /**
@@ -57,12 +78,33 @@ public class Cluster implements Comparable<Cluster> {
     private boolean ignoreLogoutServer = false;
 
     /**
-     * Map of players UUID's to the servername they logged out of
+     * Map of players UUID's to the id of the server they logged out of
      */
-    private LoadingCache<UUID, String> logoutCache = null;
+    private LoadingCache<UUID, Short> logoutCache = null;
+
+    /**
+     * Players that have no logout server on this cluster. The entries expire independently
+     * of the logout cache so that a missing server gets looked up again after some time.
+     */
+    private Cache<UUID, Boolean> missingLogoutServers = null;
+
+    /**
+     * The names of the servers that logout server ids refer to, the index is the id
+     */
+    private final List<String> logoutServerNames = new CopyOnWriteArrayList<>();
+
+    /**
+     * Map of servernames to their logout server id
+     */
+    private final Map<String, Short> logoutServerIds = new ConcurrentHashMap<>();
 
     private ValueStorage logoutStorage = null;
 
+    /**
+     * The cluster specific settings of the logout cache, <tt>null</tt> if the global ones should be used
+     */
+    private Configuration logoutCacheConfig;
+
     /**
      * The default server of this cluster one connects to the first time
      */
@@ -74,6 +116,27 @@ public class Cluster implements Comparable<Cluster> {
     private boolean hidden = false;
     private LocationInfo spawn;
 
+    /**
+     * Map of the players currently on this cluster to the name of the server they are on
+     */
+    private final Map<ProxiedPlayer, String> players = new ConcurrentHashMap<>();
+
+    /**
+     * Map of servernames to the amount of players currently on them
+     */
+    private final Map<String, AtomicInteger> serverPlayerCounts = new ConcurrentHashMap<>();
+
+    /**
+     * How players without a logout server get sent to a server. Replaced as a whole so
+     * that connecting players never see the strategy, balancer and soft caps of different settings.
+     */
+    private volatile Balancing balancing = new Balancing(BalancingStrategy.DEFAULT, null, new HashMap<>());
+
+    /**
+     * Players that currently get connected to a server that the balancer selected
+     */
+    private final Set<UUID> balancedConnects = ConcurrentHashMap.newKeySet();
+
     /**
      * The cluster object
      * @param plugin     The ServerClusters plugin
@@ -93,11 +156,25 @@ public class Cluster implements Comparable<Cluster> {
      * @param ignoreLogoutServer Should we ignore the logout server on this cluster?
      */
     public Cluster(ServerClusters plugin, String name, List<String> serverlist, String defaultServer, boolean ignoreLogoutServer) {
+        this(plugin, name, serverlist, defaultServer, ignoreLogoutServer, null);
+    }
+
+    /**
+     * The cluster object
+     * @param plugin        The ServerClusters plugin
+     * @param name          The name of the cluster
+     * @param serverlist    The list of servernames this cluster contains. Cannot be empty!
+     * @param defaultServer The name of the default server the player's connect to if they weren't on the cluster before.
+     * @param ignoreLogoutServer Should we ignore the logout server on this cluster?
+     * @param logoutCacheConfig The settings of the logout cache of this cluster, <tt>null</tt> to use the global ones
+     */
+    public Cluster(ServerClusters plugin, String name, List<String> serverlist, String defaultServer, boolean ignoreLogoutServer, Configuration logoutCacheConfig) {
         this.plugin = plugin;
         this.name = name;
         this.serverlist = serverlist;
         this.defaultServer = defaultServer;
         this.ignoreLogoutServer = ignoreLogoutServer;
+        this.logoutCacheConfig = logoutCacheConfig;
 
         if (getServerlist().size() > 1 && !shouldIgnoreLogoutServer()) {
             initLogoutStorage();
@@ -110,61 +187,232 @@ public class Cluster implements Comparable<Cluster> {
                 name,
                 config.getStringList("server"),
                 config.getString("default", null),
-                config.getBoolean("ignoreLogoutServer", false)
+                config.getBoolean("ignoreLogoutServer", false),
+                config.getSection("logoutCache")
         );
 
         setAliases(config.getStringList("alias"));
         setHidden(config.getBoolean("hidden", false));
         setDefaultServer(config.getString("cluster", null));
+
+        Configuration balancingConfig = config.getSection("balancing");
+        String strategyName = balancingConfig.getString("strategy", BalancingStrategy.DEFAULT.name());
+        BalancingStrategy strategy;
+        try {
+            strategy = BalancingStrategy.valueOf(strategyName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().log(Level.WARNING, "Unknown balancing strategy " + strategyName + " for cluster " + name + "! Using the default server.");
+            strategy = BalancingStrategy.DEFAULT;
+        }
+        setBalancing(strategy, readServerValues(balancingConfig.getSection("weights")), readServerValues(balancingConfig.getSection("softCaps")));
+    }
+
+    private static Map<String, Integer> readServerValues(Configuration section) {
+        Map<String, Integer> values = new HashMap<>();
+        for (String servername : section.getKeys()) {
+            values.put(servername, section.getInt(servername));
+        }
+        return values;
     }
 
     private void initLogoutStorage() {
-        if (plugin.getBackend() == Backend.MYSQL) {
-            try {
-                logoutStorage = new MysqlStorage(plugin, "logoutserver_" + getName());
-            } catch (InvalidPropertiesFormatException e) {
-                e.printStackTrace();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+        SharedValueStorage sharedStorage = plugin.getClusterManager().getLogoutStorage();
+        if (sharedStorage != null) {
+            logoutStorage = sharedStorage.getStorage(getName());
         }
         if (logoutStorage == null) {
             logoutStorage = new YamlStorage(plugin, "logoutserver_" + getName());
         }
-        logoutCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(new CacheLoader<UUID, String>() {
+        Configuration globalConfig = plugin.getConfig().getSection("logoutCache");
+        Configuration config = logoutCacheConfig != null ? logoutCacheConfig : globalConfig;
+        int maximumSize = config.getInt("maximumSize", globalConfig.getInt("maximumSize", 10000));
+        int expireAfterAccess = config.getInt("expireAfterAccess", globalConfig.getInt("expireAfterAccess", 60));
+        int missingExpire = config.getInt("missingExpire", globalConfig.getInt("missingExpire", 300));
+        int missingMaximumSize = config.getInt("missingMaximumSize", globalConfig.getInt("missingMaximumSize", 10000));
+
+        missingLogoutServers = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, missingMaximumSize))
+                .expireAfterWrite(Math.max(1, missingExpire), TimeUnit.SECONDS)
+                .build();
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats().maximumSize(maximumSize);
+        if (expireAfterAccess > 0) {
+            builder.expireAfterAccess(expireAfterAccess, TimeUnit.MINUTES);
+        }
+        logoutCache = builder.build(new CacheLoader<UUID, Short>() {
                     @Override
-                    public String load(UUID uuid) throws Exception {
+                    public Short load(UUID uuid) {
                         String serverName = null;
                         if(logoutStorage != null) {
                             serverName = logoutStorage.getValue(uuid);
                         }
                         if (serverName == null) {
-                            throw new ServerNotFoundException("No logout server found for player " + uuid + " on cluster " + getName());
+                            missingLogoutServers.put(uuid, true);
+                            return NO_LOGOUT_SERVER;
                         }
-                        return serverName;
+                        return getLogoutServerId(serverName);
                     }
                 });
     }
 
     /**
-     * Connects a player to the server cluster and the last server he was on
+     * Get the id of a server in the logout cache, servers that don't have one yet get a new one
+     * @param servername The name of the server
+     * @return The id of the server
+     */
+    private short getLogoutServerId(String servername) {
+        Short id = logoutServerIds.get(servername);
+        if (id == null) {
+            synchronized (logoutServerNames) {
+                id = logoutServerIds.get(servername);
+                if (id == null) {
+                    if (logoutServerNames.size() >= Short.MAX_VALUE) {
+                        throw new IllegalStateException("Too many different logout servers on cluster " + getName() + "!");
+                    }
+                    id = (short) logoutServerNames.size();
+                    logoutServerNames.add(servername);
+                    logoutServerIds.put(servername, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Get the name of the server with a logout server id
+     * @param id The id of the server
+     * @return The name of the server, <tt>null</tt> if the id is null or the player has no logout server
+     */
+    private String getLogoutServerName(Short id) {
+        return id != null && id != NO_LOGOUT_SERVER ? logoutServerNames.get(id) : null;
+    }
+
+    /**
+     * Connects a player to the server cluster and the last server he was on.
+     * If he wasn't on the cluster before the balancing strategy selects the server.
      * @param player The player to connect
      */
     public void connectPlayer(ProxiedPlayer player) {
         String servername = getLogoutServer(player.getUniqueId());
-        if (servername == null) {
-            servername = getDefaultServer();
+        boolean balanced = servername == null;
+        if (balanced) {
+            servername = getBalancedServer();
         }
         ServerInfo server = plugin.getProxy().getServers().get(servername);
         if (server != null) {
-            player.connect(server);
+            connect(player, server, balanced);
         } else {
             player.sendMessage(new ComponentBuilder("Error:").color(ChatColor.DARK_RED).append(" The server " + servername + " does not exist!").color(ChatColor.RED).create());
         }
     }
 
+    /**
+     * Connects multiple players to the server cluster and the last server each of them was on.
+     * The players are grouped by their target server so that every server only gets looked up once.
+     * Players that get balanced count towards the server they were assigned to as they won't be on it yet.
+     * @param players The players to connect
+     */
+    public void connectPlayers(Collection<ProxiedPlayer> players) {
+        Map<String, List<ProxiedPlayer>> serverPlayers = new LinkedHashMap<>();
+        Map<String, Integer> assigned = new HashMap<>();
+        Set<ProxiedPlayer> balancedPlayers = new HashSet<>();
+        for (ProxiedPlayer player : players) {
+            String servername = getLogoutServer(player.getUniqueId());
+            if (servername == null) {
+                servername = getBalancedServer(s -> getPlayerCount(s) + assigned.getOrDefault(s, 0));
+                assigned.merge(servername, 1, Integer::sum);
+                balancedPlayers.add(player);
+            }
+            serverPlayers.computeIfAbsent(servername, s -> new ArrayList<>()).add(player);
+        }
+        for (Map.Entry<String, List<ProxiedPlayer>> entry : serverPlayers.entrySet()) {
+            ServerInfo server = plugin.getProxy().getServers().get(entry.getKey());
+            for (ProxiedPlayer player : entry.getValue()) {
+                if (server != null) {
+                    connect(player, server, balancedPlayers.contains(player));
+                } else {
+                    player.sendMessage(new ComponentBuilder("Error:").color(ChatColor.DARK_RED).append(" The server " + entry.getKey() + " does not exist!").color(ChatColor.RED).create());
+                }
+            }
+        }
+    }
+
+    private void connect(ProxiedPlayer player, ServerInfo server, boolean balanced) {
+        if (!balanced || balancing.balancer == null) {
+            player.connect(server);
+            return;
+        }
+        // The ServerConnectEvent gets called directly in connect, mark the player so that the listener doesn't balance again
+        balancedConnects.add(player.getUniqueId());
+        try {
+            player.connect(server);
+        } finally {
+            balancedConnects.remove(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Check whether or not a player currently gets connected to a server that the balancer of this cluster selected
+     * @param playerId The UUID of the player
+     * @return <tt>true</tt> if the server was already balanced
+     */
+    public boolean isBalancedConnect(UUID playerId) {
+        return balancedConnects.contains(playerId);
+    }
+
+    /**
+     * Get the server that a player without a logout server should be sent to according to the balancing strategy.
+     * Servers which reached their soft cap are skipped unless all servers reached it.
+     * @return The name of the server
+     */
+    public String getBalancedServer() {
+        return getBalancedServer(this::getPlayerCount);
+    }
+
+    private String getBalancedServer(ToIntFunction<String> load) {
+        Balancing balancing = this.balancing;
+        if (balancing.balancer == null) {
+            return getDefaultServer();
+        }
+        List<String> available = new ArrayList<>();
+        List<String> candidates = new ArrayList<>();
+        for (String servername : getServerlist()) {
+            if (plugin.getProxy().getServerInfo(servername) == null) {
+                continue;
+            }
+            available.add(servername);
+            Integer softCap = balancing.softCaps.get(servername);
+            if (softCap == null || load.applyAsInt(servername) < softCap) {
+                candidates.add(servername);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            return balancing.balancer.select(candidates, load);
+        }
+        if (!available.isEmpty()) {
+            return OVERFLOW_BALANCER.select(available, load);
+        }
+        return getDefaultServer();
+    }
+
+    /**
+     * Get the strategy used to pick the server for players without a logout server
+     * @return The balancing strategy
+     */
+    public BalancingStrategy getBalancingStrategy() {
+        return balancing.strategy;
+    }
+
+    /**
+     * Set how this cluster picks the server for players without a logout server
+     * @param strategy The balancing strategy
+     * @param weights  Map of servernames to their weight for the weighted round robin, servers that aren't in it have a weight of 1
+     * @param softCaps Map of servernames to the amount of players after which they should be avoided
+     */
+    public void setBalancing(BalancingStrategy strategy, Map<String, Integer> weights, Map<String, Integer> softCaps) {
+        this.balancing = new Balancing(strategy, ServerBalancer.create(strategy, weights), softCaps);
+    }
+
     /**
      * Get the default server of this cluster
      * @return The name of the default server
@@ -190,7 +438,8 @@ public class Cluster implements Comparable<Cluster> {
     public void setLogoutServer(UUID playerId, String servername) {
         if (getServerlist().size() > 1 && !shouldIgnoreLogoutServer() && getServerlist().contains(servername)) {
             logoutStorage.putValue(playerId, servername);
-            logoutCache.put(playerId, servername);
+            logoutCache.put(playerId, getLogoutServerId(servername));
+            missingLogoutServers.invalidate(playerId);
         }
     }
 
@@ -202,28 +451,88 @@ public class Cluster implements Comparable<Cluster> {
     public String getLogoutServer(UUID playerId) {
         if (getServerlist().size() > 1 && !shouldIgnoreLogoutServer()) {
             try {
-                return logoutCache.get(playerId);
-            } catch (ExecutionException e) {
-                if (!(e.getCause() instanceof ServerNotFoundException)) {
-                    e.printStackTrace();
+                Short id = logoutCache.getUnchecked(playerId);
+                if (id == NO_LOGOUT_SERVER && missingLogoutServers.getIfPresent(playerId) == null) {
+                    // The cached miss expired, look it up again
+                    logoutCache.invalidate(playerId);
+                    id = logoutCache.getUnchecked(playerId);
                 }
+                return getLogoutServerName(id);
+            } catch (UncheckedExecutionException e) {
+                // Failed loads are not cached, the next lookup will query the storage again
+                plugin.getLogger().log(Level.SEVERE, "Could not load the logout server of " + playerId + " on cluster " + getName(), e.getCause());
             }
         }
         return null;
     }
 
+    /**
+     * Gets the name of the server a player logged out of without loading it from the storage
+     * @param playerId  The UUID of the Player to get the logout server for
+     * @return          The name of the logout server as a string, null if not found or not loaded yet
+     */
+    public String getCachedLogoutServer(UUID playerId) {
+        if (hasLogoutStorage()) {
+            return getLogoutServerName(logoutCache.getIfPresent(playerId));
+        }
+        return null;
+    }
+
+    /**
+     * Put the server a player logged out of into the cache without writing it to the storage
+     * @param playerId      The UUID of the Player
+     * @param servername    The name of the server, <tt>null</tt> if he doesn't have one
+     */
+    public void cacheLogoutServer(UUID playerId, String servername) {
+        if (hasLogoutStorage()) {
+            if (servername != null) {
+                logoutCache.put(playerId, getLogoutServerId(servername));
+                missingLogoutServers.invalidate(playerId);
+            } else {
+                missingLogoutServers.put(playerId, true);
+                logoutCache.put(playerId, NO_LOGOUT_SERVER);
+            }
+        }
+    }
+
+    /**
+     * Get the statistics of the logout cache of this cluster
+     * @return The statistics, <tt>null</tt> if this cluster doesn't store logout servers
+     */
+    public CacheStats getLogoutCacheStats() {
+        return hasLogoutStorage() ? logoutCache.stats() : null;
+    }
+
+    /**
+     * Get the amount of entries in the logout cache of this cluster
+     * @return The amount of cached logout servers
+     */
+    public long getLogoutCacheSize() {
+        return hasLogoutStorage() ? logoutCache.size() : 0;
+    }
+
+    /**
+     * Get the amount of players in the logout cache of this cluster that don't have a logout server
+     * @return The amount of cached misses
+     */
+    public long getMissingLogoutCacheSize() {
+        return hasLogoutStorage() ? missingLogoutServers.size() : 0;
+    }
+
+    /**
+     * Check whether or not this cluster stores the servers players logged out of
+     * @return <tt>true</tt> if it has more than one server and doesn't ignore the logout server
+     */
+    public boolean hasLogoutStorage() {
+        return getServerlist().size() > 1 && !shouldIgnoreLogoutServer() && logoutCache != null;
+    }
+
     /**
      * Get the list of players on this cluster
      * @return The list of players on this cluster
      */
     public List<ProxiedPlayer> getPlayerlist() {
-        List<ProxiedPlayer> playerlist = new ArrayList<ProxiedPlayer>();
-        for (String s : getServerlist()) {
-            ServerInfo si = plugin.getProxy().getServerInfo(s);
-            if (si != null)
-                playerlist.addAll(si.getPlayers());
-        }
-        return playerlist;
+        return new ArrayList<>(players.keySet());
     }
 
     /**
@@ -231,13 +540,62 @@ public class Cluster implements Comparable<Cluster> {
      * @return The amount of players
      */
     public int getPlayerCount() {
-        int amount = 0;
-        for (String s : getServerlist()) {
-            ServerInfo si = plugin.getProxy().getServerInfo(s);
-            if (si != null)
-                amount += si.getPlayers().size();
+        return players.size();
+    }
+
+    /**
+     * Get the amount of players on a server of this cluster
+     * @param servername The name of the server
+     * @return The amount of players, 0 if the server is not part of this cluster
+     */
+    public int getPlayerCount(String servername) {
+        AtomicInteger count = serverPlayerCounts.get(servername);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Track that a player is now on a server of this cluster
+     * @param player     The player
+     * @param servername The name of the server the player is on
+     */
+    public synchronized void addPlayer(ProxiedPlayer player, String servername) {
+        String previous = players.put(player, servername);
+        if (!servername.equals(previous)) {
+            if (previous != null) {
+                serverPlayerCounts.get(previous).decrementAndGet();
+            }
+            serverPlayerCounts.computeIfAbsent(servername, s -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Track that a player left this cluster
+     * @param player The player
+     */
+    public synchronized void removePlayer(ProxiedPlayer player) {
+        String previous = players.remove(player);
+        if (previous != null) {
+            serverPlayerCounts.get(previous).decrementAndGet();
+        }
+    }
+
+    /**
+     * Replace the tracked players of this cluster with the actual state of the proxy
+     * @param actualPlayers Map of the players on this cluster to the name of the server they are on
+     */
+    public synchronized void setPlayers(Map<ProxiedPlayer, String> actualPlayers) {
+        players.keySet().retainAll(actualPlayers.keySet());
+        players.putAll(actualPlayers);
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String servername : players.values()) {
+            counts.merge(servername, 1, Integer::sum);
+        }
+        for (Map.Entry<String, AtomicInteger> entry : serverPlayerCounts.entrySet()) {
+            entry.getValue().set(counts.getOrDefault(entry.getKey(), 0));
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            serverPlayerCounts.computeIfAbsent(entry.getKey(), s -> new AtomicInteger()).set(entry.getValue());
         }
-        return amount;
     }
 
     /**
@@ -259,6 +617,9 @@ public class Cluster implements Comparable<Cluster> {
             if (countOld == 1 && !shouldIgnoreLogoutServer()) {
                 initLogoutStorage();
             }
+            if (plugin.getClusterManager() != null && plugin.getClusterManager().isManaged(this)) {
+                plugin.getClusterManager().rebuildIndex();
+            }
         }
     }
 
@@ -332,12 +693,15 @@ public class Cluster implements Comparable<Cluster> {
     public void setAliases(List<String> aliasList) {
         aliases = new HashSet<>();
         for (String alias : aliasList) {
-            aliases.add(alias.toLowerCase());
+            aliases.add(alias.toLowerCase(Locale.ROOT));
+        }
+        if (plugin.getClusterManager() != null && plugin.getClusterManager().isManaged(this)) {
+            plugin.getClusterManager().rebuildIndex();
         }
     }
 
     public boolean isAlias(String name) {
-        return aliases.contains(name.toLowerCase());
+        return aliases.contains(name.toLowerCase(Locale.ROOT));
     }
 
     public boolean containsServer(String servername) {
@@ -416,4 +780,24 @@ public class Cluster implements Comparable<Cluster> {
     public void setSpawn(LocationInfo spawn) {
         this.spawn = spawn;
     }
+
+    private static class Balancing {
+        private final BalancingStrategy strategy;
+
+        /**
+         * The balancer of the strategy, <tt>null</tt> if the default server should be used
+         */
+        private final ServerBalancer balancer;
+
+        /**
+         * Map of servernames to the amount of players after which the balancer should avoid them
+         */
+        private final Map<String, Integer> softCaps;
+
+        private Balancing(BalancingStrategy strategy, ServerBalancer balancer, Map<String, Integer> softCaps) {
+            this.strategy = strategy;
+            this.balancer = balancer;
+            this.softCaps = Collections.unmodifiableMap(new HashMap<>(softCaps));
+        }
+    }
 }
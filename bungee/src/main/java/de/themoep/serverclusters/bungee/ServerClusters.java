@@ -19,6 +19,7 @@ import de.themoep.serverclusters.bungee.utils.TeleportUtils;
 import de.themoep.vnpbungee.VNPBungee;
 
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import net.md_5.bungee.config.Configuration;
 import net.minecrell.serverlistplus.core.ServerListPlusCore;
 import net.minecrell.serverlistplus.core.replacement.AbstractDynamicReplacer;
@@ -38,6 +39,8 @@ public class ServerClusters extends BungeePlugin {
 
     private TeleportManager tm;
 
+    private CooldownManager cooldownManager;
+
     private ClusterManager cm;
 
     private TeleportUtils teleportUtils;
@@ -49,7 +52,11 @@ public class ServerClusters extends BungeePlugin {
     private long commandCooldown;
     private int teleportDelay;
     private int teleportTimeout;
+    private int teleportReadyTimeout;
     private boolean hideVanished;
+    private int playerReconcileInterval;
+    private int logoutPrefetchTimeout;
+    private ScheduledTask playerReconcileTask = null;
 
     public void onLoad() {
         super.onLoad();
@@ -88,14 +95,18 @@ public class ServerClusters extends BungeePlugin {
 
     public void onEnable() {
         loadConfig();
+        cooldownManager = new CooldownManager(this);
         setupCommands(getConfig().getBoolean("latebindCommands"));
         teleportUtils = new TeleportUtils(this);
         tm = new TeleportManager(this);
 
         getLogger().log(infolevel, "Registering Listeners...");
         getProxy().getPluginManager().registerListener(this, new PluginMessageListener(this));
+        getProxy().getPluginManager().registerListener(this, new LoginListener(this));
         getProxy().getPluginManager().registerListener(this, new ServerSwitchListener(this));
         getProxy().getPluginManager().registerListener(this, new ServerConnectListener(this));
+        getProxy().getPluginManager().registerListener(this, new ServerConnectedListener(this));
+        getProxy().getPluginManager().registerListener(this, new PlayerDisconnectListener(this));
 
         if (getProxy().getPluginManager().getPlugin("VNPBungee") != null) {
             vnpbungee = (VNPBungee) getProxy().getPluginManager().getPlugin("VNPBungee");
@@ -115,6 +126,7 @@ public class ServerClusters extends BungeePlugin {
         getWarpManager().destroy();
         getClusterManager().destroy();
         getTeleportManager().destroy();
+        getCooldownManager().destroy();
     }
 
     private void loadConfig() {
@@ -128,38 +140,49 @@ public class ServerClusters extends BungeePlugin {
         try {
             backend = Backend.valueOf(getConfig().getString("backend"));
         } catch (IllegalArgumentException e) {
-            getLogger().info("No or wrong backend option in config.yml. Only YAML and MYSQL is allowed! Falling back to YAML backend!");
+            getLogger().info("No or wrong backend option in config.yml. Only YAML, MYSQL and LOG is allowed! Falling back to YAML backend!");
             backend = Backend.YAML;
         }
 
         teleportDelay = getConfig().getInt("teleportDelay");
         commandCooldown = getConfig().getInt("commandCooldown");
         teleportTimeout = getConfig().getInt("teleportTimeout");
+        teleportReadyTimeout = getConfig().getInt("teleportReadyTimeout", 30);
 
         hideVanished = getConfig().getBoolean("hideVanished");
+        playerReconcileInterval = getConfig().getInt("playerReconcileInterval", 60);
+        logoutPrefetchTimeout = getConfig().getInt("logoutPrefetchTimeout", 1000);
 
         getLogger().info("Loading Cluster Manager...");
+        if (cm != null) {
+            // Makes sure that pending writes of the old storages get flushed
+            cm.destroy();
+        }
         cm = new ClusterManager(this);
         Configuration section = getConfig().getSection("cluster");
+        List<Cluster> clusters = new ArrayList<>();
         for (String clustername : section.getKeys()) {
-            getClusterManager().addCluster(new Cluster(this, clustername, section.getSection(clustername)));
+            clusters.add(new Cluster(this, clustername, section.getSection(clustername)));
         }
+        getClusterManager().addClusters(clusters);
 
+        // Every server that isn't part of a configured cluster gets its own one
+        List<Cluster> serverClusters = new ArrayList<>();
         for (String servername : getProxy().getServers().keySet()) {
-            if (!section.getKeys().contains(servername)) {
-                boolean addserver = true;
-                for (Cluster c : getClusterManager().getClusterlist()) {
-                    if (c.containsServer(servername)) {
-                        addserver = false;
-                        break;
-                    }
-                }
-                if (addserver) {
-                    Cluster cluster = new Cluster(this, servername, Collections.singletonList(servername));
-                    getClusterManager().addCluster(cluster);
-                }
+            if (!section.getKeys().contains(servername) && getClusterManager().getClusterByServer(servername) == null) {
+                serverClusters.add(new Cluster(this, servername, Collections.singletonList(servername)));
             }
         }
+        getClusterManager().addClusters(serverClusters);
+
+        getClusterManager().reconcilePlayers();
+        if (playerReconcileTask != null) {
+            playerReconcileTask.cancel();
+            playerReconcileTask = null;
+        }
+        if (playerReconcileInterval > 0) {
+            playerReconcileTask = getProxy().getScheduler().schedule(this, () -> getClusterManager().reconcilePlayers(), playerReconcileInterval, playerReconcileInterval, TimeUnit.SECONDS);
+        }
 
         getLogger().info("Loading Spawn Manager....");
         try {
@@ -231,6 +254,7 @@ public class ServerClusters extends BungeePlugin {
      */
     public void reloadConfig() {
         loadConfig();
+        getCooldownManager().reload();
         setupCommands(false);
     }
 
@@ -246,6 +270,22 @@ public class ServerClusters extends BungeePlugin {
         return teleportTimeout;
     }
 
+    /**
+     * Get how long to wait for the target server to report a teleported player as ready
+     * @return The timeout in seconds
+     */
+    public int getTeleportReadyTimeout() {
+        return teleportReadyTimeout;
+    }
+
+    /**
+     * Get how long the login should wait for the logout servers to load
+     * @return The timeout in milliseconds, 0 or less if they shouldn't be loaded on login
+     */
+    public int getLogoutPrefetchTimeout() {
+        return logoutPrefetchTimeout;
+    }
+
     public boolean shouldHideVanished() {
         return hideVanished;
     }
@@ -262,6 +302,10 @@ public class ServerClusters extends BungeePlugin {
         return tm;
     }
 
+    public CooldownManager getCooldownManager() {
+        return cooldownManager;
+    }
+
     public ClusterManager getClusterManager() {
         return cm;
     }
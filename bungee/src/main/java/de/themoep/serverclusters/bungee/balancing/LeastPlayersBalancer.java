@@ -0,0 +1,24 @@
+package de.themoep.serverclusters.bungee.balancing;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Selects the server with the least players, on a tie the one that comes first in the serverlist
+ */
+public class LeastPlayersBalancer implements ServerBalancer {
+
+    @Override
+    public String select(List<String> servers, ToIntFunction<String> load) {
+        String selected = null;
+        int selectedLoad = Integer.MAX_VALUE;
+        for (String server : servers) {
+            int serverLoad = load.applyAsInt(server);
+            if (selected == null || serverLoad < selectedLoad) {
+                selected = server;
+                selectedLoad = serverLoad;
+            }
+        }
+        return selected;
+    }
+}
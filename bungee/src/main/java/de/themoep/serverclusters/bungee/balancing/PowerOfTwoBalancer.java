@@ -0,0 +1,29 @@
+package de.themoep.serverclusters.bungee.balancing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+/**
+ * Selects two random servers and uses the one with less players. This only looks at
+ * two counts per selection and avoids that all players pile onto the same server
+ * when the counts lag behind the actual connections.
+ */
+public class PowerOfTwoBalancer implements ServerBalancer {
+
+    @Override
+    public String select(List<String> servers, ToIntFunction<String> load) {
+        if (servers.size() == 1) {
+            return servers.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(servers.size());
+        int second = random.nextInt(servers.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        String a = servers.get(first);
+        String b = servers.get(second);
+        return load.applyAsInt(b) < load.applyAsInt(a) ? b : a;
+    }
+}
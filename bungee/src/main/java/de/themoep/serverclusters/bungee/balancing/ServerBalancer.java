@@ -0,0 +1,40 @@
+package de.themoep.serverclusters.bungee.balancing;
+
+import de.themoep.serverclusters.bungee.enums.BalancingStrategy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Picks the server of a cluster that a player without a logout server gets sent to
+ */
+public interface ServerBalancer {
+
+    /**
+     * Select a server
+     * @param servers The names of the servers to choose from, never empty
+     * @param load    Function returning the amount of players on a server
+     * @return The name of the selected server
+     */
+    String select(List<String> servers, ToIntFunction<String> load);
+
+    /**
+     * Create the balancer for a strategy
+     * @param strategy The strategy
+     * @param weights  Map of servernames to their weight, servers that aren't in it have a weight of 1
+     * @return The balancer or <tt>null</tt> if the strategy is {@link BalancingStrategy#DEFAULT}
+     */
+    static ServerBalancer create(BalancingStrategy strategy, Map<String, Integer> weights) {
+        switch (strategy) {
+            case LEAST_PLAYERS:
+                return new LeastPlayersBalancer();
+            case WEIGHTED_ROUND_ROBIN:
+                return new WeightedRoundRobinBalancer(weights);
+            case POWER_OF_TWO:
+                return new PowerOfTwoBalancer();
+            default:
+                return null;
+        }
+    }
+}
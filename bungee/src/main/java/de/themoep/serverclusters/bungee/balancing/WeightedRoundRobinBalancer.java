@@ -0,0 +1,53 @@
+package de.themoep.serverclusters.bungee.balancing;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Smooth weighted round robin: every server gets picked according to its weight
+ * but the picks are interleaved instead of sending a whole batch to the same server.
+ */
+public class WeightedRoundRobinBalancer implements ServerBalancer {
+
+    private final Map<String, Integer> weights;
+
+    /**
+     * The current weight of each server. Servers that aren't candidates of a selection,
+     * e.g. because they reached their soft cap, keep their current weight until they are again.
+     */
+    private final Map<String, Integer> current = new HashMap<>();
+
+    /**
+     * @param weights Map of servernames to their weight, servers that aren't in it have a weight of 1
+     */
+    public WeightedRoundRobinBalancer(Map<String, Integer> weights) {
+        this.weights = weights;
+        for (String server : weights.keySet()) {
+            current.put(server, 0);
+        }
+    }
+
+    @Override
+    public synchronized String select(List<String> servers, ToIntFunction<String> load) {
+        String selected = null;
+        int selectedWeight = Integer.MIN_VALUE;
+        int total = 0;
+        for (String server : servers) {
+            int weight = getWeight(server);
+            total += weight;
+            int currentWeight = current.merge(server, weight, Integer::sum);
+            if (selected == null || currentWeight > selectedWeight) {
+                selected = server;
+                selectedWeight = currentWeight;
+            }
+        }
+        current.put(selected, selectedWeight - total);
+        return selected;
+    }
+
+    private int getWeight(String server) {
+        return Math.max(1, weights.getOrDefault(server, 1));
+    }
+}
@@ -156,8 +156,10 @@ public class WarpCommand extends CooldownBukkitCommand {
 
         if (players.size() > 0) {
             try {
-                for (ProxiedPlayer player : players) {
-                    plugin.getWarpManager().warpPlayer(sender, player, warp);
+                if (players.size() == 1) {
+                    plugin.getWarpManager().warpPlayer(sender, players.get(0), warp);
+                } else {
+                    plugin.getWarpManager().warpPlayers(sender, players, warp);
                 }
             } catch (ServerNotFoundException e) {
                 if (args.length >= 2) {
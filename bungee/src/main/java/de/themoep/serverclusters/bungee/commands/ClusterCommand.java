@@ -132,6 +132,7 @@ public class ClusterCommand extends ServerClustersCommand {
 
             ArrayList<String> playerlist = new ArrayList<>(Arrays.asList(args));
             playerlist.remove(0);
+            List<ProxiedPlayer> players = new ArrayList<>();
             for (String playername : playerlist) {
                 ProxiedPlayer p = plugin.getProxy().getPlayer(playername);
                 if (p == null) {
@@ -140,9 +141,10 @@ public class ClusterCommand extends ServerClustersCommand {
                     sender.sendMessage(ChatColor.RED + "Error: " + ChatColor.YELLOW + "Player " + ChatColor.RED + playername + ChatColor.YELLOW + " is already on " + ChatColor.RED + targetCluster.getName() + ChatColor.YELLOW + "!");
                 } else {
                     p.sendMessage(ChatColor.GREEN + "Verbinde " + ChatColor.YELLOW + playername + ChatColor.GREEN + " mit " + ChatColor.YELLOW + targetCluster.getName() + ChatColor.GREEN + "...");
-                    targetCluster.connectPlayer(p);
+                    players.add(p);
                 }
             }
+            targetCluster.connectPlayers(players);
         }
         return true;
     }
@@ -72,7 +72,7 @@ public class ListCommand extends ServerClustersCommand {
 
         for (Cluster c : cl) {
             if (c.canSee(sender)) {
-                boolean current = sender instanceof ProxiedPlayer && c.getServerlist().toString().matches(".*\\b" + ((ProxiedPlayer) sender).getServer().getInfo().getName() + "\\b.*");
+                boolean current = sender instanceof ProxiedPlayer && c == plugin.getClusterManager().getPlayerCluster((ProxiedPlayer) sender);
 
                 if (c.isHidden() && !current && !sender.hasPermission("serverclusters.seehidden") && !sender.hasPermission(c.getPermission() + ".see")) {
                     continue;
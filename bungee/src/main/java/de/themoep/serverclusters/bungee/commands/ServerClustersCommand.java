@@ -2,10 +2,15 @@ package de.themoep.serverclusters.bungee.commands;
 
 import de.themoep.bungeeplugin.BungeePlugin;
 import de.themoep.bungeeplugin.PluginCommand;
+import com.google.common.cache.CacheStats;
+import de.themoep.serverclusters.bungee.Cluster;
 import de.themoep.serverclusters.bungee.ServerClusters;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 
+import java.util.Collections;
+import java.util.List;
+
 
 public class ServerClustersCommand extends PluginCommand<ServerClusters> {
 
@@ -20,6 +25,32 @@ public class ServerClustersCommand extends PluginCommand<ServerClusters> {
         } else if ("reload".equalsIgnoreCase(args[0])) {
             plugin.reloadConfig();
             sender.sendMessage(ChatColor.YELLOW + "Config reloaded!");
+        } else if ("cachestats".equalsIgnoreCase(args[0])) {
+            List<Cluster> clusters;
+            if (args.length > 1) {
+                Cluster cluster = plugin.getClusterManager().getCluster(args[1]);
+                if (cluster == null) {
+                    sender.sendMessage(ChatColor.RED + "Error: " + ChatColor.YELLOW + "There is no cluster with the name " + args[1] + "!");
+                    return true;
+                }
+                clusters = Collections.singletonList(cluster);
+            } else {
+                clusters = plugin.getClusterManager().getClusterlist();
+            }
+            sender.sendMessage(ChatColor.YELLOW + "Logout cache statistics:");
+            for (Cluster cluster : clusters) {
+                CacheStats stats = cluster.getLogoutCacheStats();
+                if (stats == null) {
+                    continue;
+                }
+                sender.sendMessage(ChatColor.GREEN + cluster.getName() + ChatColor.YELLOW + ": "
+                        + ChatColor.WHITE + cluster.getLogoutCacheSize() + ChatColor.YELLOW + " entries"
+                        + " (" + cluster.getMissingLogoutCacheSize() + " without logout server), "
+                        + "hit rate " + ChatColor.WHITE + String.format("%.1f%%", stats.hitRate() * 100) + ChatColor.YELLOW
+                        + " (" + stats.hitCount() + " hits, " + stats.missCount() + " misses), "
+                        + "avg. load " + ChatColor.WHITE + String.format("%.2fms", stats.averageLoadPenalty() / 1000000) + ChatColor.YELLOW + ", "
+                        + "evictions " + ChatColor.WHITE + stats.evictionCount());
+            }
         }
         return true;
     }
@@ -3,5 +3,6 @@ package de.themoep.serverclusters.bungee.enums;
 
 public enum Backend {
     MYSQL,
+    LOG,
     YAML;
 }
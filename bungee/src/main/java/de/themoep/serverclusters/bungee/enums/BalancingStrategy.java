@@ -0,0 +1,23 @@
+package de.themoep.serverclusters.bungee.enums;
+
+/**
+ * The strategies a cluster can use to pick the server for players that don't have a logout server on it
+ */
+public enum BalancingStrategy {
+    /**
+     * Always use the default server of the cluster
+     */
+    DEFAULT,
+    /**
+     * Use the server with the least players
+     */
+    LEAST_PLAYERS,
+    /**
+     * Go through the servers in turn, servers with a higher weight get picked more often
+     */
+    WEIGHTED_ROUND_ROBIN,
+    /**
+     * Pick two random servers and use the one with less players
+     */
+    POWER_OF_TWO;
+}
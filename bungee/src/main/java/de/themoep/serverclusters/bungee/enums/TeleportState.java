@@ -0,0 +1,15 @@
+package de.themoep.serverclusters.bungee.enums;
+
+/**
+ * The states a teleport goes through on the proxy
+ */
+public enum TeleportState {
+    /**
+     * The player is getting connected to the server of the target
+     */
+    CONNECTING,
+    /**
+     * The player is on the target server and we wait for the server to report that he was teleported
+     */
+    TELEPORTING;
+}
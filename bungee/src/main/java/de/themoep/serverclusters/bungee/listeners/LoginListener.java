@@ -0,0 +1,53 @@
+package de.themoep.serverclusters.bungee.listeners;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+import de.themoep.serverclusters.bungee.manager.ClusterManager;
+
+import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.event.EventHandler;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+public class LoginListener implements Listener {
+
+    private ServerClusters plugin;
+
+    public LoginListener(ServerClusters plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Load the logout servers of the player while he logs in so that they
+     * don't need to be loaded on the event thread when he connects to a server
+     */
+    @EventHandler
+    public void onLogin(LoginEvent event) {
+        UUID playerId = event.getConnection().getUniqueId();
+        if (event.isCancelled() || playerId == null || plugin.getLogoutPrefetchTimeout() <= 0) {
+            return;
+        }
+
+        ClusterManager clusterManager = plugin.getClusterManager();
+        AtomicBoolean completed = new AtomicBoolean(false);
+        event.registerIntent(plugin);
+        ScheduledTask timeoutTask = plugin.getProxy().getScheduler().schedule(plugin, () -> {
+            if (completed.compareAndSet(false, true)) {
+                plugin.getLogger().log(Level.WARNING, "Loading the logout servers of " + event.getConnection().getName() + " took longer than " + plugin.getLogoutPrefetchTimeout() + "ms! Using the default servers if they aren't loaded when he connects.");
+                event.completeIntent(plugin);
+            }
+        }, plugin.getLogoutPrefetchTimeout(), TimeUnit.MILLISECONDS);
+
+        clusterManager.prefetchLogoutServers(playerId, () -> {
+            if (completed.compareAndSet(false, true)) {
+                timeoutTask.cancel();
+                event.completeIntent(plugin);
+            }
+        });
+    }
+
+}
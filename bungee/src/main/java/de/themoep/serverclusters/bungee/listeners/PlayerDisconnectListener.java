@@ -0,0 +1,23 @@
+package de.themoep.serverclusters.bungee.listeners;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+
+public class PlayerDisconnectListener implements Listener {
+
+    private ServerClusters plugin;
+
+    public PlayerDisconnectListener(ServerClusters plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler
+    public void onPlayerDisconnect(PlayerDisconnectEvent event) {
+        plugin.getClusterManager().removePlayer(event.getPlayer());
+        plugin.getTeleportUtils().clearTeleport(event.getPlayer());
+    }
+
+}
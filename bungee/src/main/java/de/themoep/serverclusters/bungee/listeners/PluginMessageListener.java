@@ -1,10 +1,15 @@
 package de.themoep.serverclusters.bungee.listeners;
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteStreams;
-
 import de.themoep.serverclusters.bungee.LocationInfo;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import de.themoep.serverclusters.common.protocol.CancelTeleportMessage;
+import de.themoep.serverclusters.common.protocol.ErrorMessage;
+import de.themoep.serverclusters.common.protocol.LocationData;
+import de.themoep.serverclusters.common.protocol.Message;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.ProtocolException;
+import de.themoep.serverclusters.common.protocol.ReadyMessage;
+import de.themoep.serverclusters.common.protocol.RunCommandMessage;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.connection.Server;
@@ -12,6 +17,7 @@ import net.md_5.bungee.api.event.PluginMessageEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
+import java.util.UUID;
 import java.util.logging.Level;
 
 /**
@@ -24,9 +30,9 @@ public class PluginMessageListener implements Listener {
 
     public PluginMessageListener(ServerClusters plugin) {
         this.plugin = plugin;
-        plugin.getProxy().registerChannel("sc:runcommand");
-        plugin.getProxy().registerChannel("sc:cancelteleport");
-        plugin.getProxy().registerChannel("sc:error");
+        for (String channel : Protocol.getChannels()) {
+            plugin.getProxy().registerChannel(channel);
+        }
     }
 
     @EventHandler
@@ -47,47 +53,52 @@ public class PluginMessageListener implements Listener {
         }
 
         ProxiedPlayer receiver = (ProxiedPlayer) event.getReceiver();
-        ByteArrayDataInput in = ByteStreams.newDataInput(event.getData());
+        Message message;
+        try {
+            message = Protocol.decode(event.getTag(), event.getData());
+        } catch (ProtocolException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not read plugin message on " + event.getTag() + " from " + receiver.getServer().getInfo().getName() + ": " + e.getMessage());
+            return;
+        }
 
-        if ("sc:runcommand".equals(event.getTag())) {
-            String sender = in.readUTF();
-            String command = in.readUTF();
+        if (message instanceof RunCommandMessage) {
+            RunCommandMessage runCommand = (RunCommandMessage) message;
             LocationInfo loc = null;
 
             // Location was send
-            if (in.readBoolean()) {
+            if (runCommand.getLocation() != null) {
+                LocationData location = runCommand.getLocation();
                 loc = new LocationInfo(
                         receiver.getServer().getInfo().getName(),
-                        in.readUTF(),
-                        in.readDouble(),
-                        in.readDouble(),
-                        in.readDouble(),
-                        in.readFloat(),
-                        in.readFloat()
+                        location.getWorld(),
+                        location.getX(),
+                        location.getY(),
+                        location.getZ(),
+                        location.getYaw(),
+                        location.getPitch()
                 );
             }
 
-            String argsStr = in.readUTF();
-            String[] args = argsStr.split(" ");
-            if (args.length == 1 && args[0].isEmpty()) {
-                args = new String[]{};
-            }
-            plugin.getLogger().log(Level.INFO, receiver.getName() + " received a plugin message on channel ServerClusters/RunCommand/" + command + " '" + argsStr + "' from " + sender + (loc != null ? " at " + loc : ""));
+            String sender = runCommand.getSenderId() != null ? runCommand.getSenderId().toString() : "console";
+            String argsStr = String.join(" ", runCommand.getArgs());
+            plugin.getLogger().log(Level.INFO, receiver.getName() + " received a plugin message on channel ServerClusters/RunCommand/" + runCommand.getCommand() + " '" + argsStr + "' from " + sender + (loc != null ? " at " + loc : ""));
 
-            if (!plugin.getBukkitCommandExecutor().execute(command, sender, loc, args)) {
-                plugin.getLogger().log(Level.WARNING, "Error while running ServerClusters/RunCommand/" + command + " from " + sender + "! Command failed to execute?");
+            if (!plugin.getBukkitCommandExecutor().execute(runCommand.getCommand(), runCommand.getSenderId(), loc, runCommand.getArgs())) {
+                plugin.getLogger().log(Level.WARNING, "Error while running ServerClusters/RunCommand/" + runCommand.getCommand() + " from " + sender + "! Command failed to execute?");
             }
-        } else if ("sc:cancelteleport".equals(event.getTag())) {
-            String playerName = in.readUTF();
-            ProxiedPlayer player = plugin.getProxy().getPlayer(playerName);
+        } else if (message instanceof CancelTeleportMessage) {
+            UUID playerId = ((CancelTeleportMessage) message).getPlayerId();
+            ProxiedPlayer player = plugin.getProxy().getPlayer(playerId);
             if (player != null) {
                 plugin.getTeleportManager().cancelTeleport(player);
             }
-            plugin.getLogger().log(Level.INFO, receiver.getName() + " received a plugin message on channel ServerClusters/CancelTeleport '" + playerName + "'");
-        } else if ("sc:error".equals(event.getTag())) {
-            String type = in.readUTF();
-            String value = in.readUTF();
-            ((ProxiedPlayer) event.getReceiver()).sendMessage(ChatColor.RED + "An error occured: " + type + " " + value);
+            plugin.getLogger().log(Level.INFO, receiver.getName() + " received a plugin message on channel ServerClusters/CancelTeleport '" + playerId + "'");
+        } else if (message instanceof ReadyMessage) {
+            ReadyMessage ready = (ReadyMessage) message;
+            plugin.getTeleportUtils().onReady(ready.getPlayerId(), ((Server) event.getSender()).getInfo().getName(), ready.isSuccess());
+        } else if (message instanceof ErrorMessage) {
+            ErrorMessage error = (ErrorMessage) message;
+            receiver.sendMessage(ChatColor.RED + "An error occured: " + error.getType() + " " + error.getValue());
         }
     }
 }
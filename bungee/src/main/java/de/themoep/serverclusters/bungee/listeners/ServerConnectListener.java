@@ -2,6 +2,7 @@ package de.themoep.serverclusters.bungee.listeners;
 
 import de.themoep.serverclusters.bungee.Cluster;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import de.themoep.serverclusters.bungee.enums.BalancingStrategy;
 
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.chat.ComponentBuilder;
@@ -32,7 +33,14 @@ public class ServerConnectListener implements Listener {
                 event.setCancelled(true);
                 event.getPlayer().disconnect(networkConnectEvent.getCancelMessage());
             } else if (networkConnectEvent.getTarget() != null) {
-                String logoutServer = networkConnectEvent.getTarget().getLogoutServer(event.getPlayer().getUniqueId());
+                String logoutServer;
+                boolean prefetching = plugin.getClusterManager().isPrefetching(event.getPlayer().getUniqueId());
+                if (prefetching) {
+                    // Loading took longer than the login timeout, don't block and use the default server if not known
+                    logoutServer = networkConnectEvent.getTarget().getCachedLogoutServer(event.getPlayer().getUniqueId());
+                } else {
+                    logoutServer = networkConnectEvent.getTarget().getLogoutServer(event.getPlayer().getUniqueId());
+                }
                 if (logoutServer != null) {
                     ServerInfo server = plugin.getProxy().getServerInfo(logoutServer);
                     if (server != null) {
@@ -41,6 +49,9 @@ public class ServerConnectListener implements Listener {
                         event.setCancelled(true);
                         event.getPlayer().disconnect(new ComponentBuilder("Error:").color(ChatColor.DARK_RED).append(" The server " + logoutServer + " does not exist!").color(ChatColor.RED).create());
                     }
+                } else if (!prefetching) {
+                    // Only balance if the logout server is really unknown, not if it just didn't load in time
+                    balanceTarget(event, networkConnectEvent.getTarget());
                 }
             }
         } else if (!target.containsServer(event.getPlayer().getServer().getInfo().getName())) {
@@ -50,7 +61,7 @@ public class ServerConnectListener implements Listener {
             plugin.getProxy().getPluginManager().callEvent(clusterSwitchEvent);
             if (clusterSwitchEvent.isCancelled()) {
                 event.setCancelled(true);
-            } else if (clusterSwitchEvent.getTo() != null && !plugin.getTeleportUtils().isTeleporting(event.getPlayer())) {
+            } else if (clusterSwitchEvent.getTo() != null && !plugin.getTeleportUtils().isTeleporting(event.getPlayer(), event.getTarget())) {
                 String logoutServer = clusterSwitchEvent.getTo().getLogoutServer(event.getPlayer().getUniqueId());
                 if (logoutServer != null) {
                     ServerInfo server = plugin.getProxy().getServerInfo(logoutServer);
@@ -60,9 +71,33 @@ public class ServerConnectListener implements Listener {
                         event.setCancelled(true);
                         event.getPlayer().sendMessage(new ComponentBuilder("Error:").color(ChatColor.DARK_RED).append(" The server " + logoutServer + " does not exist!").color(ChatColor.RED).create());
                     }
+                } else {
+                    balanceTarget(event, clusterSwitchEvent.getTo());
                 }
             }
         }
     }
 
+    /**
+     * Send a player that has no logout server on a cluster to the server its balancing strategy selects.
+     * Only connects to the default server of the cluster (or to a server outside of it) get balanced,
+     * a player that explicitly connects to another server of the cluster stays on that target.
+     * @param event   The connect event
+     * @param cluster The cluster the player connects to
+     */
+    private void balanceTarget(ServerConnectEvent event, Cluster cluster) {
+        if (cluster.getBalancingStrategy() == BalancingStrategy.DEFAULT || cluster.isBalancedConnect(event.getPlayer().getUniqueId())) {
+            return;
+        }
+        String targetName = event.getTarget().getName();
+        if (cluster.containsServer(targetName) && !targetName.equalsIgnoreCase(cluster.getDefaultServer())) {
+            return;
+        }
+        String servername = cluster.getBalancedServer();
+        ServerInfo server = plugin.getProxy().getServerInfo(servername);
+        if (server != null) {
+            event.setTarget(server);
+        }
+    }
+
 }
@@ -0,0 +1,22 @@
+package de.themoep.serverclusters.bungee.listeners;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+
+import net.md_5.bungee.api.event.ServerConnectedEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+
+public class ServerConnectedListener implements Listener {
+
+    private ServerClusters plugin;
+
+    public ServerConnectedListener(ServerClusters plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler
+    public void onServerConnected(ServerConnectedEvent event) {
+        plugin.getClusterManager().updatePlayer(event.getPlayer(), event.getServer().getInfo().getName());
+    }
+
+}
@@ -19,6 +19,7 @@ public class ServerSwitchListener implements Listener {
     public void onServerSwitch(ServerSwitchEvent event) {
         String serverName = event.getPlayer().getServer().getInfo().getName();
         plugin.getLogger().info("ServerSwitchEvent - to " + serverName);
+        plugin.getClusterManager().updatePlayer(event.getPlayer(), serverName);
         Cluster cluster = plugin.getClusterManager().getClusterByServer(serverName);
         if (cluster != null) {
             cluster.setLogoutServer(event.getPlayer().getUniqueId(), serverName);
@@ -1,20 +1,82 @@
 package de.themoep.serverclusters.bungee.manager;
 
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.InvalidPropertiesFormatException;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
+import com.google.common.collect.ImmutableMap;
 import de.themoep.serverclusters.bungee.Cluster;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import de.themoep.serverclusters.bungee.enums.Backend;
+import de.themoep.serverclusters.bungee.storage.LogStorage;
+import de.themoep.serverclusters.bungee.storage.MysqlStorage;
+import de.themoep.serverclusters.bungee.storage.SharedValueStorage;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 
 public class ClusterManager extends Manager {
 
     private final Map<String, Cluster> clustermap = new LinkedHashMap<>();
 
+    /**
+     * Immutable index of server names to the cluster they belong to,
+     * replaced as a whole whenever the cluster membership changes
+     */
+    private volatile Map<String, Cluster> serverIndex = ImmutableMap.of();
+
+    /**
+     * Immutable index of lowercase cluster names and aliases to their cluster
+     */
+    private volatile Map<String, Cluster> nameIndex = ImmutableMap.of();
+
+    /**
+     * Conflicts that were already logged so that every rebuild of the indexes doesn't log them again
+     */
+    private final Set<String> reportedConflicts = new HashSet<>();
+
+    /**
+     * Map of the UUIDs of online players to the cluster they are tracked on
+     */
+    private final Map<UUID, Cluster> playerClusters = new ConcurrentHashMap<>();
+
+    /**
+     * UUIDs of players whose logout servers are still getting loaded
+     */
+    private final Set<UUID> pendingPrefetches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Storage for the logout servers of all clusters, null if each cluster uses its own storage
+     */
+    private SharedValueStorage logoutStorage = null;
+
     public ClusterManager(ServerClusters plugin) {
         super(plugin);
+        if (plugin.getBackend() == Backend.MYSQL) {
+            try {
+                logoutStorage = new MysqlStorage(plugin, "logoutserver");
+            } catch (InvalidPropertiesFormatException e) {
+                plugin.getLogger().log(Level.WARNING, e.getMessage());
+            } catch (SQLException | RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not initialize the MySQL storage! Falling back to YAML!", e);
+            }
+        } else if (plugin.getBackend() == Backend.LOG) {
+            try {
+                logoutStorage = new LogStorage(plugin, "logoutserver");
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not initialize the log storage! Falling back to YAML!", e);
+            }
+        }
     }
 
     /**
@@ -31,16 +93,16 @@ public class ClusterManager extends Manager {
      * @return cluster or null if cluster does not exist
      */
     public Cluster getCluster(String name) {
-        if (clustermap.containsKey(name)) {
-            return clustermap.get(name);
-        }
-
-        for (Cluster c : clustermap.values()) {
-            if (c.getName().equalsIgnoreCase(name) || c.isAlias(name)) {
-                return c;
+        Map<String, Cluster> index = nameIndex;
+        Cluster cluster = index.get(name);
+        if (cluster == null) {
+            // toLowerCase only creates a new string if the input actually contained uppercase chars
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            if (lowerName != name) {
+                cluster = index.get(lowerName);
             }
         }
-        return null;
+        return cluster;
     }
 
     /**
@@ -49,14 +111,7 @@ public class ClusterManager extends Manager {
      * @return cluster or null if cluster does not exist
      */
     public Cluster getClusterByServer(String servername) {
-        for (Cluster c : getClusterlist()) {
-            for (String s : c.getServerlist()) {
-                if (s.equals(servername)) {
-                    return c;
-                }
-            }
-        }
-        return null;
+        return serverIndex.get(servername);
     }
 
     /**
@@ -77,12 +132,175 @@ public class ClusterManager extends Manager {
      */
     public void addCluster(Cluster cluster) {
         clustermap.put(cluster.getName(), cluster);
+        rebuildIndex();
     }
 
+    /**
+     * Adds multiple new clusters to the clustermanager and only rebuilds the indexes once
+     * @param clusters Clusters to add
+     */
+    public void addClusters(Collection<Cluster> clusters) {
+        for (Cluster cluster : clusters) {
+            clustermap.put(cluster.getName(), cluster);
+        }
+        rebuildIndex();
+    }
+
+    /**
+     * Rebuild the server and name lookup indexes from the current clusters.
+     * Has to be called whenever servers or aliases of a managed cluster change.
+     */
+    public synchronized void rebuildIndex() {
+        Map<String, Cluster> servers = new LinkedHashMap<>();
+        Map<String, Cluster> names = new LinkedHashMap<>();
+        for (Cluster cluster : clustermap.values()) {
+            for (String server : cluster.getServerlist()) {
+                Cluster previous = servers.putIfAbsent(server, cluster);
+                if (previous != null && previous != cluster) {
+                    warnOnce("Server " + server + " is part of both cluster " + previous.getName() + " and " + cluster.getName() + "! Only " + previous.getName() + " will be used.");
+                }
+            }
+            Cluster previous = names.putIfAbsent(cluster.getName().toLowerCase(Locale.ROOT), cluster);
+            if (previous != null && previous != cluster) {
+                warnOnce("Cluster name " + cluster.getName() + " collides with the cluster " + previous.getName() + "! Only " + previous.getName() + " can be resolved by that name.");
+            }
+        }
+        // Names always win over aliases
+        for (Cluster cluster : clustermap.values()) {
+            for (String alias : cluster.getAliases()) {
+                Cluster previous = names.putIfAbsent(alias, cluster);
+                if (previous != null && previous != cluster) {
+                    warnOnce("Alias " + alias + " of cluster " + cluster.getName() + " is already used by cluster " + previous.getName() + "! It will resolve to " + previous.getName() + ".");
+                }
+            }
+        }
+        serverIndex = ImmutableMap.copyOf(servers);
+        nameIndex = ImmutableMap.copyOf(names);
+    }
+
+    private void warnOnce(String message) {
+        if (reportedConflicts.add(message)) {
+            plugin.getLogger().warning(message);
+        }
+    }
+
+    /**
+     * Update the cluster a player is tracked on after he connected to a server
+     * @param player     The player
+     * @param servername The name of the server the player is on now
+     */
+    public void updatePlayer(ProxiedPlayer player, String servername) {
+        Cluster cluster = getClusterByServer(servername);
+        Cluster previous = cluster != null
+                ? playerClusters.put(player.getUniqueId(), cluster)
+                : playerClusters.remove(player.getUniqueId());
+        if (previous != null && previous != cluster) {
+            previous.removePlayer(player);
+        }
+        if (cluster != null) {
+            cluster.addPlayer(player, servername);
+        }
+    }
+
+    /**
+     * Stop tracking a player, e.g. after he left the network
+     * @param player The player
+     */
+    public void removePlayer(ProxiedPlayer player) {
+        Cluster previous = playerClusters.remove(player.getUniqueId());
+        if (previous != null) {
+            previous.removePlayer(player);
+        }
+    }
+
+    /**
+     * Reconcile the tracked players of all clusters with the players that are actually online on the proxy
+     */
+    public void reconcilePlayers() {
+        Map<Cluster, Map<ProxiedPlayer, String>> actualPlayers = new HashMap<>();
+        Map<UUID, Cluster> actualClusters = new HashMap<>();
+        for (ProxiedPlayer player : plugin.getProxy().getPlayers()) {
+            if (player.getServer() == null || player.getServer().getInfo() == null) {
+                continue;
+            }
+            String servername = player.getServer().getInfo().getName();
+            Cluster cluster = getClusterByServer(servername);
+            if (cluster != null) {
+                actualPlayers.computeIfAbsent(cluster, c -> new HashMap<>()).put(player, servername);
+                actualClusters.put(player.getUniqueId(), cluster);
+            }
+        }
+        playerClusters.keySet().retainAll(actualClusters.keySet());
+        playerClusters.putAll(actualClusters);
+        for (Cluster cluster : clustermap.values()) {
+            cluster.setPlayers(actualPlayers.getOrDefault(cluster, new HashMap<>()));
+        }
+    }
+
+    /**
+     * Asynchronously load the logout servers of a player for all clusters into their caches.
+     * Until this is done {@link #isPrefetching(UUID)} will return <tt>true</tt> for that player.
+     * @param playerId The UUID of the player
+     * @param callback Run once all logout servers are loaded
+     */
+    public void prefetchLogoutServers(UUID playerId, Runnable callback) {
+        pendingPrefetches.add(playerId);
+        plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+            try {
+                if (logoutStorage != null) {
+                    // Query all clusters at once, a failed query throws so nothing gets cached as missing
+                    Map<String, String> logoutServers = logoutStorage.getValues(playerId);
+                    for (Cluster cluster : clustermap.values()) {
+                        cluster.cacheLogoutServer(playerId, logoutServers.get(cluster.getName()));
+                    }
+                } else {
+                    for (Cluster cluster : clustermap.values()) {
+                        if (cluster.hasLogoutStorage()) {
+                            cluster.getLogoutServer(playerId);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while loading the logout servers of " + playerId, e);
+            } finally {
+                pendingPrefetches.remove(playerId);
+                callback.run();
+            }
+        });
+    }
+
+    /**
+     * Check whether or not the logout servers of a player are still getting loaded
+     * @param playerId The UUID of the player
+     * @return <tt>true</tt> if they are still loading; <tt>false</tt> if not
+     */
+    public boolean isPrefetching(UUID playerId) {
+        return pendingPrefetches.contains(playerId);
+    }
+
+    /**
+     * Check whether or not a cluster is managed by this manager
+     * @param cluster The cluster to check
+     * @return <tt>true</tt> if it was added to this manager; <tt>false</tt> if not
+     */
+    public boolean isManaged(Cluster cluster) {
+        return clustermap.get(cluster.getName()) == cluster;
+    }
+
+    /**
+     * Get the storage that stores the logout servers of all clusters
+     * @return The shared storage or <tt>null</tt> if every cluster uses its own storage
+     */
+    public SharedValueStorage getLogoutStorage() {
+        return logoutStorage;
+    }
 
     public void destroy() {
         for (Cluster cluster : clustermap.values()) {
             cluster.destroy();
         }
+        if (logoutStorage != null) {
+            logoutStorage.close();
+        }
     }
 }
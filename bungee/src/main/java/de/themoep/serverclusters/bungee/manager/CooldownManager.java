@@ -0,0 +1,164 @@
+package de.themoep.serverclusters.bungee.manager;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.config.Configuration;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the command cooldowns of the players. Every command gets an index in an array of
+ * the times until which a player can't use it, so each player only needs one map entry.
+ * Players whose cooldowns all ran out get removed when they are checked and by a regular sweep.
+ */
+public class CooldownManager extends Manager {
+
+    private static final long SWEEP_INTERVAL = 60;
+
+    private final Map<String, Integer> commandIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCommandId = new AtomicInteger(0);
+
+    /**
+     * Map of player UUIDs to the times until which they can't use a command, by the command id
+     */
+    private final Map<UUID, long[]> cooldowns = new ConcurrentHashMap<>();
+
+    /**
+     * Cooldown lengths in milliseconds of the players with the permission of a group
+     */
+    private volatile Map<String, Long> groupCooldowns = new LinkedHashMap<>();
+
+    private final ScheduledTask sweepTask;
+
+    public CooldownManager(ServerClusters plugin) {
+        super(plugin);
+        reload();
+        sweepTask = plugin.getProxy().getScheduler().schedule(plugin, this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Load the cooldowns of the permission groups from the config
+     */
+    public void reload() {
+        Map<String, Long> groupCooldowns = new LinkedHashMap<>();
+        Configuration section = plugin.getConfig().getSection("cooldownGroups");
+        for (String group : section.getKeys()) {
+            groupCooldowns.put(group.toLowerCase(Locale.ROOT), section.getLong(group) * 1000);
+        }
+        this.groupCooldowns = groupCooldowns;
+    }
+
+    @Override
+    public void destroy() {
+        sweepTask.cancel();
+        cooldowns.clear();
+    }
+
+    /**
+     * Get the id under which the cooldowns of a command are stored
+     * @param command   The name of the command
+     * @return The id of the command
+     */
+    public int registerCommand(String command) {
+        return commandIds.computeIfAbsent(command.toLowerCase(Locale.ROOT), c -> nextCommandId.getAndIncrement());
+    }
+
+    /**
+     * Get how long the cooldown of a player is. Players with the permission serverclusters.cooldown.&lt;group&gt;
+     * get the lowest cooldown of their groups, all others the default commandCooldown.
+     * @param player    The player
+     * @return The length of the cooldown in milliseconds
+     */
+    public long getCooldownLength(ProxiedPlayer player) {
+        long length = -1;
+        for (Map.Entry<String, Long> entry : groupCooldowns.entrySet()) {
+            if ((length < 0 || entry.getValue() < length) && player.hasPermission("serverclusters.cooldown." + entry.getKey())) {
+                length = entry.getValue();
+            }
+        }
+        return length >= 0 ? length : plugin.getCommandCooldown() * 1000;
+    }
+
+    /**
+     * Start the cooldown of a command for a player if it isn't running already
+     * @param player    The player who wants to use the command
+     * @param commandId The id of the command
+     * @return The remaining cooldown in milliseconds if it was still running; 0 if the command can be used
+     */
+    public long use(ProxiedPlayer player, int commandId) {
+        long now = System.currentTimeMillis();
+        long length = getCooldownLength(player);
+        long[] remaining = {0};
+        cooldowns.compute(player.getUniqueId(), (id, until) -> {
+            if (until == null) {
+                if (length <= 0) {
+                    return null;
+                }
+                until = new long[Math.max(commandId + 1, nextCommandId.get())];
+            } else if (until.length <= commandId) {
+                until = Arrays.copyOf(until, Math.max(commandId + 1, nextCommandId.get()));
+            }
+            if (until[commandId] > now) {
+                remaining[0] = until[commandId] - now;
+                return until;
+            }
+            until[commandId] = now + length;
+            return isExpired(until, now) ? null : until;
+        });
+        return remaining[0];
+    }
+
+    /**
+     * Get the remaining cooldown of a command for a player
+     * @param playerId  The UUID of the player
+     * @param commandId The id of the command
+     * @return The remaining cooldown in milliseconds, 0 if there is none
+     */
+    public long getRemaining(UUID playerId, int commandId) {
+        long[] until = cooldowns.get(playerId);
+        if (until == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(until, now)) {
+            cooldowns.computeIfPresent(playerId, (id, u) -> isExpired(u, now) ? null : u);
+            return 0;
+        }
+        return commandId < until.length ? Math.max(0, until[commandId] - now) : 0;
+    }
+
+    /**
+     * Get the amount of players that have a cooldown entry
+     * @return The amount of players
+     */
+    public int size() {
+        return cooldowns.size();
+    }
+
+    /**
+     * Remove the players whose cooldowns all ran out
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (UUID playerId : cooldowns.keySet()) {
+            cooldowns.computeIfPresent(playerId, (id, until) -> isExpired(until, now) ? null : until);
+        }
+    }
+
+    private static boolean isExpired(long[] until, long now) {
+        for (long time : until) {
+            if (time > now) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+package de.themoep.serverclusters.bungee.manager;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Runs the delayed teleports of players once their delay passed. The teleports are ordered
+ * by their deadline and don't use a scheduler task each, instead {@link #tick(long)} needs
+ * to get called regularly and runs all teleports that are due in one batch.
+ * Each player can only have one delayed teleport, scheduling a new one replaces the old one.
+ */
+class DelayedTeleportScheduler {
+
+    private final ServerClusters plugin;
+
+    /**
+     * The currently pending teleports by the UUID of their player
+     */
+    private final Map<UUID, DelayedTeleport> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The pending teleports by their deadline. Cancelled teleports stay in here until they are due
+     * and get skipped then, only access while holding its lock.
+     */
+    private final PriorityQueue<DelayedTeleport> queue = new PriorityQueue<>();
+
+    DelayedTeleportScheduler(ServerClusters plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Schedule a delayed teleport of a player
+     * @param playerId  The UUID of the player
+     * @param delay     The delay in milliseconds
+     * @param teleport  The teleport to run
+     */
+    void schedule(UUID playerId, long delay, Runnable teleport) {
+        DelayedTeleport delayedTeleport = new DelayedTeleport(playerId, System.currentTimeMillis() + delay, teleport);
+        // Needs to be pending before it can be found in the queue
+        pending.put(playerId, delayedTeleport);
+        synchronized (queue) {
+            queue.add(delayedTeleport);
+        }
+    }
+
+    /**
+     * Cancel the delayed teleport of a player
+     * @param playerId  The UUID of the player
+     * @return <tt>true</tt> if the player had a delayed teleport; <tt>false</tt> if not
+     */
+    boolean cancel(UUID playerId) {
+        return pending.remove(playerId) != null;
+    }
+
+    /**
+     * Get the amount of delayed teleports that are waiting for their delay to pass
+     * @return The amount of pending teleports
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Run all teleports whose deadline passed
+     * @param now   The current time in milliseconds
+     */
+    void tick(long now) {
+        List<DelayedTeleport> due = null;
+        synchronized (queue) {
+            while (!queue.isEmpty() && queue.peek().deadline <= now) {
+                DelayedTeleport teleport = queue.poll();
+                // Only run it if it wasn't cancelled or replaced in the meantime
+                if (pending.remove(teleport.playerId, teleport)) {
+                    if (due == null) {
+                        due = new ArrayList<>();
+                    }
+                    due.add(teleport);
+                }
+            }
+        }
+        if (due == null) {
+            return;
+        }
+        for (DelayedTeleport teleport : due) {
+            try {
+                teleport.runnable.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while running delayed teleport of " + teleport.playerId, e);
+            }
+        }
+    }
+
+    /**
+     * Drop all pending teleports
+     */
+    void clear() {
+        synchronized (queue) {
+            queue.clear();
+        }
+        pending.clear();
+    }
+
+    private static class DelayedTeleport implements Comparable<DelayedTeleport> {
+        private final UUID playerId;
+        private final long deadline;
+        private final Runnable runnable;
+
+        private DelayedTeleport(UUID playerId, long deadline, Runnable runnable) {
+            this.playerId = playerId;
+            this.deadline = deadline;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(DelayedTeleport o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+}
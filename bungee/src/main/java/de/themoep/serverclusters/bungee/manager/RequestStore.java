@@ -0,0 +1,140 @@
+package de.themoep.serverclusters.bungee.manager;
+
+import com.google.common.util.concurrent.Striped;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Stores the open teleport requests of the players by the UUID of the receiver.
+ * Changes to the requests of a receiver are guarded by a striped lock so that commands,
+ * plugin messages and the expiry can't handle the same request twice.
+ */
+class RequestStore {
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    /**
+     * Map of receiver UUIDs to their requests, oldest first. The lists are only accessed while holding the lock of the receiver.
+     */
+    private final Map<UUID, List<TeleportRequest>> requests = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final int maxRequestsPerPlayer;
+
+    /**
+     * @param maxRequestsPerPlayer How many open requests a player can have, the oldest gets dropped when more are added
+     */
+    RequestStore(int maxRequestsPerPlayer) {
+        this.maxRequestsPerPlayer = Math.max(1, maxRequestsPerPlayer);
+    }
+
+    /**
+     * Add a request. An older request from the same sender to the same receiver gets replaced.
+     * @param request   The request to add
+     * @return The requests that got removed to make space for the new one
+     */
+    List<TeleportRequest> add(TeleportRequest request) {
+        List<TeleportRequest> removed = new ArrayList<>();
+        Lock lock = locks.get(request.getReceiverId());
+        lock.lock();
+        try {
+            List<TeleportRequest> list = requests.computeIfAbsent(request.getReceiverId(), id -> new ArrayList<>());
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (list.get(i).getSenderId().equals(request.getSenderId())) {
+                    removed.add(list.remove(i));
+                }
+            }
+            while (list.size() >= maxRequestsPerPlayer) {
+                removed.add(list.remove(0));
+            }
+            list.add(request);
+            size.addAndGet(1 - removed.size());
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Atomically get and remove the newest request of a receiver
+     * @param receiverId    The UUID of the receiver
+     * @param senderName    The name of the sender of the request, <tt>null</tt> or empty for the newest request of any sender
+     * @return The request or <tt>null</tt> if there was none
+     */
+    TeleportRequest take(UUID receiverId, String senderName) {
+        Lock lock = locks.get(receiverId);
+        lock.lock();
+        try {
+            List<TeleportRequest> list = requests.get(receiverId);
+            if (list == null) {
+                return null;
+            }
+            for (int i = list.size() - 1; i >= 0; i--) {
+                TeleportRequest request = list.get(i);
+                if (senderName == null || senderName.isEmpty() || request.getSender().equalsIgnoreCase(senderName)) {
+                    list.remove(i);
+                    size.decrementAndGet();
+                    if (list.isEmpty()) {
+                        requests.remove(receiverId);
+                    }
+                    return request;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a specific request
+     * @param request   The request to remove
+     * @return <tt>true</tt> if it was removed; <tt>false</tt> if it was already taken or removed
+     */
+    boolean remove(TeleportRequest request) {
+        Lock lock = locks.get(request.getReceiverId());
+        lock.lock();
+        try {
+            List<TeleportRequest> list = requests.get(request.getReceiverId());
+            if (list == null) {
+                return false;
+            }
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == request) {
+                    list.remove(i);
+                    size.decrementAndGet();
+                    if (list.isEmpty()) {
+                        requests.remove(request.getReceiverId());
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the amount of open requests of all players
+     * @return The amount of requests
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Remove all requests
+     */
+    void clear() {
+        requests.clear();
+        size.set(0);
+    }
+}
@@ -1,12 +1,11 @@
 package de.themoep.serverclusters.bungee.manager;
 
-import com.google.common.collect.Multimap;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import de.themoep.serverclusters.bungee.Cluster;
 import de.themoep.serverclusters.bungee.ServerClusters;
 import de.themoep.serverclusters.bungee.enums.TeleportTarget;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.TeleportRequestMessage;
+import de.themoep.serverclusters.common.util.TimingWheel;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.chat.ClickEvent;
 import net.md_5.bungee.api.chat.ComponentBuilder;
@@ -15,10 +14,9 @@ import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.scheduler.ScheduledTask;
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -27,19 +25,72 @@ import java.util.concurrent.TimeUnit;
  */
 public class TeleportManager extends Manager {
 
-    private final Multimap<String, Request> requestMap = MultimapBuilder.hashKeys().arrayListValues().build();
+    private final RequestStore requests;
 
-    private final Map<String, Request> cachedRequests = new HashMap<>();
+    /**
+     * Map of the players that need to confirm a request to the request
+     */
+    private final Map<UUID, TeleportRequest> cachedRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Expires open requests after the teleport timeout
+     */
+    private final TimingWheel<TeleportRequest> requestExpiry = new TimingWheel<>(512, 100, this::expireRequest);
+
+    /**
+     * Expires requests that wait for a confirmation after the teleport timeout
+     */
+    private final TimingWheel<UUID> cachedRequestExpiry = new TimingWheel<>(512, 100, this::expireCachedRequest);
 
-    private Map<UUID, ScheduledTask> teleportTasks = new HashMap<>();
+    private final DelayedTeleportScheduler delayedTeleports;
+
+    private final ScheduledTask expiryTask;
 
     public TeleportManager(ServerClusters plugin) {
         super(plugin);
+        requests = new RequestStore(plugin.getConfig().getInt("maxRequestsPerPlayer", 5));
+        delayedTeleports = new DelayedTeleportScheduler(plugin);
+        expiryTask = plugin.getProxy().getScheduler().schedule(plugin, () -> {
+            long now = System.currentTimeMillis();
+            delayedTeleports.tick(now);
+            requestExpiry.advance(now);
+            cachedRequestExpiry.advance(now);
+        }, 100, 100, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void destroy() {
-        // Nothing to do here
+        expiryTask.cancel();
+        requestExpiry.clear();
+        cachedRequestExpiry.clear();
+        delayedTeleports.clear();
+        requests.clear();
+        cachedRequests.clear();
+    }
+
+    private void expireRequest(TeleportRequest request) {
+        if (!requests.remove(request)) {
+            return;
+        }
+        ProxiedPlayer receiver = plugin.getProxy().getPlayer(request.getReceiverId());
+        if (receiver != null) {
+            receiver.sendMessage(ChatColor.GRAY + "Die Teleportationsanfrage von " + ChatColor.YELLOW + request.getSender() + ChatColor.GRAY + " ist ausgelaufen!");
+        }
+        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSenderId());
+        if (sender != null) {
+            sender.sendMessage(ChatColor.GRAY + "Deine Teleportationsanfrage an " + ChatColor.YELLOW + request.getReceiver() + ChatColor.GRAY + " ist ausgelaufen!");
+        }
+    }
+
+    private void expireCachedRequest(UUID playerId) {
+        TeleportRequest request = cachedRequests.remove(playerId);
+        if (request == null) {
+            return;
+        }
+        ProxiedPlayer player = plugin.getProxy().getPlayer(playerId);
+        if (player != null) {
+            player.sendMessage(ChatColor.GRAY + "Die Teleportation zu " + ChatColor.YELLOW + (playerId.equals(request.getSenderId()) ? request.getReceiver() : request.getSender()) + ChatColor.GRAY + " kann nicht mehr mit /tpaconfirm best\u00e4tigt werden!");
+        }
     }
 
     /**
@@ -49,19 +100,17 @@ public class TeleportManager extends Manager {
      * @param target   Where we should teleport to
      */
     public void cacheRequest(ProxiedPlayer sender, ProxiedPlayer receiver, TeleportTarget target) {
-        cacheRequest(sender.getName(), new Request(sender, receiver, target));
+        cacheRequest(sender.getUniqueId(), new TeleportRequest(sender, receiver, target));
     }
 
     /**
      * Cache a request if the user would get a warning for teleporting across clusters
-     * @param request The Request
+     * @param playerId  The UUID of the player who needs to confirm the request
+     * @param request   The Request
      */
-    public void cacheRequest(String sender, Request request) {
-        cachedRequests.put(sender, request);
-    }
-
-    private boolean isCached(Request request) {
-        return cachedRequests.containsValue(request);
+    private void cacheRequest(UUID playerId, TeleportRequest request) {
+        cachedRequests.put(playerId, request);
+        cachedRequestExpiry.schedule(playerId, plugin.getTeleportTimeout() * 1000L);
     }
 
     /**
@@ -70,23 +119,17 @@ public class TeleportManager extends Manager {
      * @return <tt>true</tt> if the request was send successfully; <tt>false</tt> if no request was cached or the receiver was already offline
      */
     public boolean applyCachedRequest(ProxiedPlayer sender) {
-        boolean r = false;
-        Request request = cachedRequests.get(sender.getName());
+        TeleportRequest request = cachedRequests.remove(sender.getUniqueId());
         if (request == null) {
             return false;
         }
-        if (request.getAction() == RequestAction.QUEUE) {
-            r = addRequest(request);
-            if (r) {
-                cachedRequests.remove(sender.getName());
-            }
-        } else if (request.getAction() == RequestAction.TELEPORT) {
-            r = acceptRequest(sender, request);
-            if (r) {
-                cachedRequests.remove(sender.getName());
-            }
+        cachedRequestExpiry.cancel(sender.getUniqueId());
+        if (request.getAction() == TeleportRequest.Action.QUEUE) {
+            return addRequest(request);
+        } else if (request.getAction() == TeleportRequest.Action.TELEPORT) {
+            return acceptRequest(sender, request, true);
         }
-        return r;
+        return false;
     }
 
     /**
@@ -97,18 +140,21 @@ public class TeleportManager extends Manager {
      * @return <tt>true</tt> if the request was successfully added; <tt>false</tt> if the receiver isn't online anymore or an error occurred
      */
     public boolean addRequest(ProxiedPlayer sender, ProxiedPlayer receiver, TeleportTarget target) {
-        return addRequest(new Request(sender, receiver, target));
+        return addRequest(new TeleportRequest(sender, receiver, target));
     }
 
-    private boolean addRequest(Request request) {
-        request.setAction(RequestAction.TELEPORT);
-        ProxiedPlayer receiver = plugin.getProxy().getPlayer(request.getReceiver());
-        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSender());
+    private boolean addRequest(TeleportRequest request) {
+        request.setAction(TeleportRequest.Action.TELEPORT);
+        ProxiedPlayer receiver = plugin.getProxy().getPlayer(request.getReceiverId());
+        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSenderId());
         if (receiver == null || sender == null) {
             return false;
         }
 
-        requestMap.put(request.getReceiver(), request);
+        for (TeleportRequest removed : requests.add(request)) {
+            requestExpiry.cancel(removed);
+        }
+        requestExpiry.schedule(request, plugin.getTeleportTimeout() * 1000L);
 
         if (request.getTarget() == TeleportTarget.RECEIVER) {
             receiver.sendMessage(ChatColor.RED + sender.getName() + ChatColor.GOLD + " fragt, ob er sich zu " + ChatColor.RED + "dir" + ChatColor.GOLD + " teleportieren darf.");
@@ -174,35 +220,17 @@ public class TeleportManager extends Manager {
     }
 
     /**
-     * Remove a request
-     * @param request The Request to remove
-     * @return <tt>true</tt> if it was removed; <tt>false</tt> if it wasn't there anymore
-     */
-    private boolean removeRequest(Request request) {
-        return requestMap.remove(request.getReceiver(), request);
-    }
-
-    /**
-     * Get the an open request
+     * Atomically get and remove an open request
      * @param player The player to get the request for
      * @param sender The sender to search for
      * @return The request of the sender; the last request if the sender is null or empty
      */
-    private Request getRequest(ProxiedPlayer player, String sender) {
-        List<Request> requestList = (List<Request>) requestMap.get(player.getName());
-        if (requestList == null || requestList.isEmpty())
-            return null;
-
-        if (sender == null || sender.isEmpty()) {
-            return requestList.get(requestList.size() - 1);
-        } else {
-            for (int i = requestList.size() - 1; i >= 0; i--) {
-                if (requestList.get(i).getSender().equalsIgnoreCase(sender)) {
-                    return requestList.get(i);
-                }
-            }
+    private TeleportRequest takeRequest(ProxiedPlayer player, String sender) {
+        TeleportRequest request = requests.take(player.getUniqueId(), sender);
+        if (request != null) {
+            requestExpiry.cancel(request);
         }
-        return null;
+        return request;
     }
 
     /**
@@ -222,42 +250,41 @@ public class TeleportManager extends Manager {
      */
     public boolean acceptRequest(ProxiedPlayer player, String senderName) {
         // TODO: Change messages to language system!
-        Request request = getRequest(player, senderName);
+        TeleportRequest request = takeRequest(player, senderName);
         if (request == null) {
             player.sendMessage(ChatColor.RED + "Du hast keine offenen Anfragen" + (senderName == null || senderName.isEmpty() ? "!" : " von " + ChatColor.YELLOW + senderName + ChatColor.RED + "!"));
             return false;
         }
 
-        return acceptRequest(player, request);
+        return acceptRequest(player, request, false);
     }
 
     /**
      * Accept a teleport request
-     * @param player  The player who wants to accept the request
-     * @param request The Request to accept
+     * @param player    The player who wants to accept the request
+     * @param request   The Request to accept
+     * @param confirmed Whether or not the teleport was already confirmed across clusters
      * @return <tt>true</tt> if he was teleported, <tt>false</tt> if not
      */
-    public boolean acceptRequest(ProxiedPlayer player, Request request) {
-        removeRequest(request);
-
+    private boolean acceptRequest(ProxiedPlayer player, TeleportRequest request, boolean confirmed) {
         if (request.getTimestamp() + plugin.getTeleportTimeout() * 1000 < System.currentTimeMillis()) {
             player.sendMessage(ChatColor.RED + "Die letzte Anfrage von " + ChatColor.YELLOW + request.getSender() + ChatColor.RED + " ist bereits ausgelaufen!");
             return false;
         }
 
-        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSender());
+        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSenderId());
         if (sender == null) {
             player.sendMessage(ChatColor.YELLOW + request.getSender() + ChatColor.RED + " ist nichtmehr online!");
             return false;
         }
 
-        ProxiedPlayer receiver = plugin.getProxy().getPlayer(request.getReceiver());
+        ProxiedPlayer receiver = plugin.getProxy().getPlayer(request.getReceiverId());
         if (receiver == null) {
             player.sendMessage(ChatColor.YELLOW + request.getReceiver() + ChatColor.RED + " ist nichtmehr online!");
             return false;
         }
 
-        if (!isCached(request)) {
+        if (!confirmed) {
             Cluster fromCluster;
             Cluster toCluster;
             if (request.getTarget() == TeleportTarget.RECEIVER) {
@@ -281,26 +308,27 @@ public class TeleportManager extends Manager {
             }
         }
 
-        player.sendMessage(ChatColor.GREEN + "Teleportationsanfrage von " + ChatColor.YELLOW + request.getSender() + ChatColor.GREEN + " akzeptiert!");
-        sender.sendMessage(ChatColor.YELLOW + player.getName() + ChatColor.GREEN + " hat deine Teleportationsanfrage angenommen!");
+        // The player might be the sender himself when he confirmed a cached request, use the request's players
+        receiver.sendMessage(ChatColor.GREEN + "Teleportationsanfrage von " + ChatColor.YELLOW + sender.getName() + ChatColor.GREEN + " akzeptiert!");
+        sender.sendMessage(ChatColor.YELLOW + receiver.getName() + ChatColor.GREEN + " hat deine Teleportationsanfrage angenommen!");
 
         if (request.getTarget() == TeleportTarget.RECEIVER) {
-            plugin.getTeleportUtils().teleportToPlayer(sender, player);
+            plugin.getTeleportUtils().teleportToPlayer(sender, receiver);
         } else if (request.getTarget() == TeleportTarget.SENDER) {
-            plugin.getTeleportUtils().teleportToPlayer(player, sender);
+            plugin.getTeleportUtils().teleportToPlayer(receiver, sender);
         }
         return true;
     }
 
-    private boolean checkTeleportPermission(ProxiedPlayer sender, ProxiedPlayer receiver, Request request, Cluster toCluster) {
+    private boolean checkTeleportPermission(ProxiedPlayer sender, ProxiedPlayer receiver, TeleportRequest request, Cluster toCluster) {
         ProxiedPlayer toCheck = request.getTarget() == TeleportTarget.RECEIVER ? sender : receiver;
         ProxiedPlayer target = request.getTarget() == TeleportTarget.RECEIVER ? receiver : sender;
         String type = request.getTarget() == TeleportTarget.RECEIVER ? "tpa" : "tpahere";
         if (toCheck.hasPermission("serverclusters.command." + type + ".intercluster")) {
             if (toCheck.hasPermission("serverclusters.cluster." + toCluster.getName())) {
                 if (!toCheck.hasPermission("serverclusters.command." + type + ".intercluster.nowarning")) {
-                    request.setAction(RequestAction.TELEPORT);
-                    cacheRequest(sender.getName(), request);
+                    request.setAction(TeleportRequest.Action.TELEPORT);
+                    cacheRequest(toCheck.getUniqueId(), request);
                     toCheck.sendMessage(new ComponentBuilder(target.getName()).color(ChatColor.RED)
                             .append(" befindet sich auf dem Server " + toCluster.getName() + "!").color(ChatColor.YELLOW)
                             .create()
@@ -349,20 +377,18 @@ public class TeleportManager extends Manager {
      */
     public boolean denyRequest(ProxiedPlayer player, String senderName) {
         // TODO: Change messages to language system!
-        Request request = getRequest(player, senderName);
+        TeleportRequest request = takeRequest(player, senderName);
         if (request == null) {
             player.sendMessage(ChatColor.RED + "Du hast keine offenen Anfragen" + (senderName == null || senderName.isEmpty() ? "!" : " von " + ChatColor.YELLOW + senderName + ChatColor.RED + "!"));
             return false;
         }
 
-        removeRequest(request);
-
         if (request.getTimestamp() + plugin.getTeleportTimeout() * 1000 < System.currentTimeMillis()) {
             player.sendMessage(ChatColor.RED + "Die letzte Anfrage von " + ChatColor.YELLOW + request.getSender() + ChatColor.RED + " ist bereits ausgelaufen!");
             return false;
         }
 
-        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSender());
+        ProxiedPlayer sender = plugin.getProxy().getPlayer(request.getSenderId());
         if (sender != null)
             sender.sendMessage(ChatColor.YELLOW + player.getName() + ChatColor.RED + " hat deine Teleportationsanfrage abgelehnt!");
 
@@ -370,80 +396,23 @@ public class TeleportManager extends Manager {
         return true;
     }
 
+    /**
+     * Get the amount of teleports that wait for their delay to pass
+     * @return The amount of pending delayed teleports
+     */
+    public int getPendingDelayedTeleports() {
+        return delayedTeleports.getPendingCount();
+    }
+
     public void scheduleDelayedTeleport(ProxiedPlayer player, Runnable runnable) {
-        if (teleportTasks.containsKey(player.getUniqueId())) {
-            plugin.getProxy().getScheduler().cancel(teleportTasks.get(player.getUniqueId()));
-        }
-        teleportTasks.put(player.getUniqueId(), plugin.getProxy().getScheduler().schedule(plugin, runnable, plugin.getTeleportDelay(), TimeUnit.SECONDS));
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeLong(player.getUniqueId().getMostSignificantBits());
-        out.writeLong(player.getUniqueId().getLeastSignificantBits());
-        player.getServer().sendData("sc:addtprequest", out.toByteArray());
+        // Replaces an older delayed teleport of the player
+        delayedTeleports.schedule(player.getUniqueId(), plugin.getTeleportDelay() * 1000L, runnable);
+        player.getServer().sendData(Protocol.TELEPORT_REQUEST, Protocol.encode(new TeleportRequestMessage(player.getUniqueId())));
     }
 
     public void cancelTeleport(ProxiedPlayer player) {
-        if (teleportTasks.containsKey(player.getUniqueId())) {
-            teleportTasks.get(player.getUniqueId()).cancel();
+        if (delayedTeleports.cancel(player.getUniqueId())) {
             player.sendMessage(ChatColor.RED + "Teleportation abgebrochen! Du musst f\u00fcr " + plugin.getTeleportDelay() + " Sekunden stehen bleiben!");
         }
     }
-
-    private class Request {
-        private final long timestamp = System.currentTimeMillis();
-        private final String sender;
-        private final String receiver;
-        private final TeleportTarget target;
-        private RequestAction action = RequestAction.QUEUE;
-
-        public Request(String sender, String receiver, TeleportTarget target) {
-            this.sender = sender;
-            this.receiver = receiver;
-            this.target = target;
-        }
-
-        public Request(ProxiedPlayer sender, ProxiedPlayer receiver, TeleportTarget target) {
-            this.sender = sender.getName();
-            this.receiver = receiver.getName();
-            this.target = target;
-        }
-
-        public long getTimestamp() {
-            return timestamp;
-        }
-
-        public String getSender() {
-            return sender;
-        }
-
-        public String getReceiver() {
-            return receiver;
-        }
-
-        public TeleportTarget getTarget() {
-            return target;
-        }
-
-        @Override
-        public String toString() {
-            return getClass().getSimpleName() + "{timestamp=" + timestamp + ",sender=" + sender + ",receiver=" + receiver + ",target=" + target + "}";
-        }
-
-        @Override
-        public int hashCode() {
-            return toString().hashCode();
-        }
-
-        public RequestAction getAction() {
-            return action;
-        }
-
-        public void setAction(RequestAction action) {
-            this.action = action;
-        }
-    }
-
-    private enum RequestAction {
-        TELEPORT,
-        QUEUE
-    }
 }
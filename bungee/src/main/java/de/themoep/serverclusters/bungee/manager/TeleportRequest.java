@@ -0,0 +1,73 @@
+package de.themoep.serverclusters.bungee.manager;
+
+import de.themoep.serverclusters.bungee.enums.TeleportTarget;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.UUID;
+
+/**
+ * A teleport request between two players
+ */
+class TeleportRequest {
+    private final long timestamp = System.currentTimeMillis();
+    private final UUID senderId;
+    private final String sender;
+    private final UUID receiverId;
+    private final String receiver;
+    private final TeleportTarget target;
+    private volatile Action action = Action.QUEUE;
+
+    TeleportRequest(ProxiedPlayer sender, ProxiedPlayer receiver, TeleportTarget target) {
+        this(sender.getUniqueId(), sender.getName(), receiver.getUniqueId(), receiver.getName(), target);
+    }
+
+    TeleportRequest(UUID senderId, String sender, UUID receiverId, String receiver, TeleportTarget target) {
+        this.senderId = senderId;
+        this.sender = sender;
+        this.receiverId = receiverId;
+        this.receiver = receiver;
+        this.target = target;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public UUID getSenderId() {
+        return senderId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public UUID getReceiverId() {
+        return receiverId;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public TeleportTarget getTarget() {
+        return target;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public void setAction(Action action) {
+        this.action = action;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{timestamp=" + timestamp + ",sender=" + sender + ",receiver=" + receiver + ",target=" + target + "}";
+    }
+
+    enum Action {
+        TELEPORT,
+        QUEUE
+    }
+}
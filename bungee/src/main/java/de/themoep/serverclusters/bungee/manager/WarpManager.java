@@ -14,9 +14,11 @@ import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.config.Configuration;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -118,6 +120,35 @@ public class WarpManager extends Manager {
         return true;
     }
 
+    /**
+     * Teleport multiple players to a specific warp. Players that can skip the teleport delay
+     * get teleported together with one message to the server of the warp.
+     * @param sender  The sender that warps the players
+     * @param players The players to teleport
+     * @param warp    The warp to teleport to
+     * @return <tt>true</tt> if the teleport was initiated, <tt>false</tt> if not (the sender gets an error message)
+     */
+    public boolean warpPlayers(CommandSender sender, Collection<ProxiedPlayer> players, final WarpInfo warp) throws ServerNotFoundException {
+        ServerInfo server = plugin.getProxy().getServerInfo(warp.getServer());
+        if (server == null) {
+            sender.sendMessage(ChatColor.RED + "Error: " + ChatColor.YELLOW + "The warp " + warp.getName() + " was configured wrong! Please contact an admin.");
+            plugin.getLogger().severe("There is no server with the name " + warp.getServer() + " for the warp " + warp.getName());
+            throw new ServerNotFoundException("There is no server with the name " + warp.getServer() + " for the warp " + warp.getName());
+        }
+
+        List<ProxiedPlayer> instant = new ArrayList<>();
+        for (ProxiedPlayer player : players) {
+            if (plugin.getTeleportDelay() <= 0 || player.hasPermission("serverclusters.bypass.delay") || (sender != player && sender.hasPermission("serverclusters.bypass.delay"))) {
+                player.sendMessage(ChatColor.GRAY + "Teleportiere zu " + warp.getName() + "...");
+                instant.add(player);
+            } else {
+                warpPlayer(sender, player, warp);
+            }
+        }
+        plugin.getTeleportUtils().teleport(instant, warp);
+        return true;
+    }
+
     /**
      * Check whether or not a sender has access to a warp, either by permissions or their location in the network
      * @param sender The sender
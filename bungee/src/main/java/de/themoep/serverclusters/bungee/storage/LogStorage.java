@@ -0,0 +1,505 @@
+package de.themoep.serverclusters.bungee.storage;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Stores the values of all clusters in an append-only binary log file.
+ * The current values are kept in a primitive in-memory index which gets
+ * rebuilt by reading the log on startup. The log gets compacted in the
+ * background once it contains too many outdated records.
+ */
+public class LogStorage extends SharedValueStorage {
+
+    private static final int MAGIC = 0x53434C47; // SCLG
+    private static final byte VERSION = 1;
+
+    /**
+     * Record which assigns an id to a cluster or server name: type, id, length, utf8 bytes
+     */
+    private static final byte STRING_RECORD = 1;
+
+    /**
+     * Record which sets the value of a player on a cluster: type, uuid msb, uuid lsb, cluster id, value id
+     */
+    private static final byte VALUE_RECORD = 2;
+    private static final int VALUE_RECORD_LENGTH = 1 + 8 + 8 + 2 + 2;
+
+    private final File file;
+
+    private final LogIndex index = new LogIndex(1024);
+
+    /**
+     * The strings stored in the log, the index in the list is their id
+     */
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Short> stringIds = new HashMap<>();
+
+    /**
+     * Ids of the strings which are used as cluster names
+     */
+    private final Set<Short> clusterIds = new LinkedHashSet<>();
+
+    private DataOutputStream out;
+
+    /**
+     * Amount of bytes in the log file, including the ones that are still buffered
+     */
+    private long position = 0;
+
+    /**
+     * Amount of value records in the log file
+     */
+    private long records = 0;
+
+    private final double compactionRatio;
+    private final int compactionMinimum;
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    /**
+     * Whether or not this storage was closed, a running compaction must not swap or reopen the log afterwards
+     */
+    private boolean closed = false;
+    private ScheduledTask flushTask = null;
+
+    public LogStorage(ServerClusters plugin, String name) throws IOException {
+        super(plugin, name);
+        file = new File(plugin.getDataFolder(), this.name + ".log");
+        compactionRatio = Math.max(1.1, plugin.getConfig().getSection("log").getDouble("compactionRatio", 2.0));
+        compactionMinimum = plugin.getConfig().getInt("log.compactionMinimum", 10000);
+
+        plugin.getLogger().info("Loading " + file.getName() + "...");
+        load();
+        plugin.getLogger().info("Loaded " + index.size() + " values from " + records + " records");
+        out = openLog();
+
+        int flushInterval = Math.max(1, plugin.getConfig().getInt("log.flushInterval", 1));
+        flushTask = plugin.getProxy().getScheduler().schedule(plugin, this::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Rebuild the index by streaming through the log file.
+     * An incomplete record at the end (e.g. from a crash) gets cut off,
+     * a corrupt record anywhere else fails the loading so that no valid records get lost.
+     */
+    private void load() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            if (!file.getParentFile().exists()) {
+                file.getParentFile().mkdirs();
+            }
+            try (DataOutputStream header = new DataOutputStream(new FileOutputStream(file))) {
+                writeHeader(header);
+            }
+            position = file.length();
+            return;
+        }
+
+        long length = file.length();
+        long validLength;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (length < 5 || in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a valid log file!");
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported log version " + version + " in " + file.getName() + "!");
+            }
+            validLength = 5;
+            while (validLength < length) {
+                long remaining = length - validLength - 1;
+                byte type = in.readByte();
+                if (type == STRING_RECORD) {
+                    if (remaining < 4) {
+                        break;
+                    }
+                    short id = in.readShort();
+                    int stringLength = in.readUnsignedShort();
+                    if (remaining - 4 < stringLength) {
+                        break;
+                    }
+                    byte[] bytes = new byte[stringLength];
+                    in.readFully(bytes);
+                    if (id != strings.size()) {
+                        throw new IOException("Unexpected string id " + id + " in " + file.getName() + " at byte " + validLength + "!");
+                    }
+                    String string = new String(bytes, StandardCharsets.UTF_8);
+                    strings.add(string);
+                    stringIds.put(string, id);
+                    validLength += 5 + stringLength;
+                } else if (type == VALUE_RECORD) {
+                    if (remaining < VALUE_RECORD_LENGTH - 1) {
+                        break;
+                    }
+                    long mostSigBits = in.readLong();
+                    long leastSigBits = in.readLong();
+                    short clusterId = in.readShort();
+                    short valueId = in.readShort();
+                    index.put(mostSigBits, leastSigBits, clusterId, valueId);
+                    clusterIds.add(clusterId);
+                    records++;
+                    validLength += VALUE_RECORD_LENGTH;
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + file.getName() + " at byte " + validLength + "!");
+                }
+            }
+        }
+
+        if (validLength < length) {
+            plugin.getLogger().log(Level.WARNING, "Cutting off " + (length - validLength) + " bytes of incomplete records at the end of " + file.getName());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        position = validLength;
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    private static int writeString(DataOutputStream out, short id, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STRING_RECORD);
+        out.writeShort(id);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 5 + bytes.length;
+    }
+
+    private static int writeValue(DataOutputStream out, long mostSigBits, long leastSigBits, short clusterId, short valueId) throws IOException {
+        out.writeByte(VALUE_RECORD);
+        out.writeLong(mostSigBits);
+        out.writeLong(leastSigBits);
+        out.writeShort(clusterId);
+        out.writeShort(valueId);
+        return VALUE_RECORD_LENGTH;
+    }
+
+    /**
+     * Get the id of a string, if it doesn't have one yet it gets added to the log
+     */
+    private short intern(String string) throws IOException {
+        Short id = stringIds.get(string);
+        if (id == null) {
+            if (strings.size() >= Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many different values in " + file.getName() + "!");
+            }
+            id = (short) strings.size();
+            position += writeString(out, id, string);
+            strings.add(string);
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized String getValue(String cluster, UUID playerId) {
+        Short clusterId = stringIds.get(cluster);
+        if (clusterId == null) {
+            return null;
+        }
+        short valueId = index.get(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), clusterId);
+        return valueId >= 0 ? strings.get(valueId) : null;
+    }
+
+    @Override
+    public synchronized Map<String, String> getValues(UUID playerId) {
+        Map<String, String> values = new HashMap<>();
+        for (short clusterId : clusterIds) {
+            short valueId = index.get(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), clusterId);
+            if (valueId >= 0) {
+                values.put(strings.get(clusterId), strings.get(valueId));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void putValue(String cluster, UUID playerId, String value) {
+        synchronized (this) {
+            try {
+                short clusterId = intern(cluster);
+                short valueId = intern(value);
+                clusterIds.add(clusterId);
+                if (index.put(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), clusterId, valueId) == valueId) {
+                    return;
+                }
+                position += writeValue(out, playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), clusterId, valueId);
+                records++;
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while writing value for player " + playerId + " on cluster " + cluster + " to " + file.getName() + "!", e);
+                return;
+            }
+            if (records < compactionMinimum || records < index.size() * compactionRatio) {
+                return;
+            }
+        }
+        if (compacting.compareAndSet(false, true)) {
+            plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+                try {
+                    compact();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the buffered records to the log file
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while writing to " + file.getName() + "!", e);
+        }
+    }
+
+    /**
+     * Rewrite the log so that it only contains the current values. The new log gets written
+     * from a snapshot of the index while writes continue to go to the old log, afterwards
+     * everything that got appended since the snapshot is copied over and the logs are swapped.
+     */
+    private void compact() {
+        long snapshotPosition;
+        long snapshotRecords;
+        LogIndex snapshot;
+        List<String> snapshotStrings;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            snapshotPosition = position;
+            snapshotRecords = records;
+            snapshot = index.copy();
+            snapshotStrings = new ArrayList<>(strings);
+        }
+
+        long start = System.currentTimeMillis();
+        File compactFile = new File(file.getParentFile(), file.getName() + ".compact");
+        try (FileOutputStream compactStream = new FileOutputStream(compactFile);
+             DataOutputStream compactOut = new DataOutputStream(new BufferedOutputStream(compactStream, 64 * 1024))) {
+            writeHeader(compactOut);
+            for (int i = 0; i < snapshotStrings.size(); i++) {
+                writeString(compactOut, (short) i, snapshotStrings.get(i));
+            }
+            snapshot.forEach((mostSigBits, leastSigBits, clusterId, valueId) -> writeValue(compactOut, mostSigBits, leastSigBits, clusterId, valueId));
+            compactOut.flush();
+            // Sync the bulk of the new log outside of the lock, only the copied tail needs to be synced while holding it
+            compactStream.getChannel().force(true);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while compacting " + file.getName() + "!", e);
+            compactFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                // The storage got closed while compacting, the old log is still complete
+                compactFile.delete();
+                return;
+            }
+            try {
+                out.flush();
+                try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                     FileChannel target = FileChannel.open(compactFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    long copyPosition = snapshotPosition;
+                    while (copyPosition < position) {
+                        copyPosition += source.transferTo(copyPosition, position - copyPosition, target);
+                    }
+                    // The compacted log has to be on the disk before it replaces the old one
+                    target.force(true);
+                }
+                out.close();
+                try {
+                    Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                records = snapshot.size() + records - snapshotRecords;
+                position = file.length();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while replacing " + file.getName() + " with the compacted log!", e);
+                compactFile.delete();
+                return;
+            } finally {
+                // Closing an already closed stream does nothing, this only matters if the replacing failed before closing it
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Error while closing " + file.getName() + "!", e);
+                }
+                try {
+                    out = openLog();
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not reopen " + file.getName() + "!", e);
+                }
+            }
+        }
+        plugin.getLogger().info("Compacted " + file.getName() + " to " + snapshot.size() + " values in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    public void close() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while closing " + file.getName() + "!", e);
+            }
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(long mostSigBits, long leastSigBits, short clusterId, short valueId) throws IOException;
+    }
+
+    /**
+     * Open addressing hash table of (player UUID, cluster id) to value id pairs stored in primitive arrays
+     */
+    private static class LogIndex {
+        private static final short EMPTY = -1;
+
+        private long[] mostSigBits;
+        private long[] leastSigBits;
+        private short[] clusterIds;
+        private short[] valueIds;
+        private int size = 0;
+
+        private LogIndex(int capacity) {
+            mostSigBits = new long[capacity];
+            leastSigBits = new long[capacity];
+            clusterIds = new short[capacity];
+            valueIds = new short[capacity];
+            Arrays.fill(clusterIds, EMPTY);
+        }
+
+        private static int hash(long mostSigBits, long leastSigBits, short clusterId) {
+            long h = mostSigBits * 31 + leastSigBits;
+            h = h * 31 + clusterId;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+
+        private int slot(long mostSigBits, long leastSigBits, short clusterId) {
+            int mask = clusterIds.length - 1;
+            int i = hash(mostSigBits, leastSigBits, clusterId) & mask;
+            while (clusterIds[i] != EMPTY
+                    && (clusterIds[i] != clusterId || this.mostSigBits[i] != mostSigBits || this.leastSigBits[i] != leastSigBits)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * @return The value id or -1 if there is none
+         */
+        private short get(long mostSigBits, long leastSigBits, short clusterId) {
+            int i = slot(mostSigBits, leastSigBits, clusterId);
+            return clusterIds[i] != EMPTY ? valueIds[i] : EMPTY;
+        }
+
+        /**
+         * @return The previous value id or -1 if there was none
+         */
+        private short put(long mostSigBits, long leastSigBits, short clusterId, short valueId) {
+            if ((size + 1) * 2 > clusterIds.length) {
+                resize(clusterIds.length * 2);
+            }
+            int i = slot(mostSigBits, leastSigBits, clusterId);
+            short previous = EMPTY;
+            if (clusterIds[i] == EMPTY) {
+                this.mostSigBits[i] = mostSigBits;
+                this.leastSigBits[i] = leastSigBits;
+                clusterIds[i] = clusterId;
+                size++;
+            } else {
+                previous = valueIds[i];
+            }
+            valueIds[i] = valueId;
+            return previous;
+        }
+
+        private void resize(int capacity) {
+            LogIndex resized = new LogIndex(capacity);
+            for (int i = 0; i < clusterIds.length; i++) {
+                if (clusterIds[i] != EMPTY) {
+                    resized.put(mostSigBits[i], leastSigBits[i], clusterIds[i], valueIds[i]);
+                }
+            }
+            mostSigBits = resized.mostSigBits;
+            leastSigBits = resized.leastSigBits;
+            clusterIds = resized.clusterIds;
+            valueIds = resized.valueIds;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private LogIndex copy() {
+            LogIndex copy = new LogIndex(0);
+            copy.mostSigBits = mostSigBits.clone();
+            copy.leastSigBits = leastSigBits.clone();
+            copy.clusterIds = clusterIds.clone();
+            copy.valueIds = valueIds.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        private void forEach(EntryConsumer consumer) throws IOException {
+            for (int i = 0; i < clusterIds.length; i++) {
+                if (clusterIds[i] != EMPTY) {
+                    consumer.accept(mostSigBits[i], leastSigBits[i], clusterIds[i], valueIds[i]);
+                }
+            }
+        }
+    }
+}
@@ -2,22 +2,79 @@ package de.themoep.serverclusters.bungee.storage;
 
 import com.zaxxer.hikari.HikariDataSource;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
-public class MysqlStorage extends ValueStorage {
+/**
+ * Stores the values of all clusters in one table with one connection pool
+ */
+public class MysqlStorage extends SharedValueStorage {
 
     private final HikariDataSource ds;
 
     private final String dbtableprefix;
 
+    /**
+     * Whether or not the values of the old per-cluster tables should be copied into the shared table
+     */
+    private final boolean migrateLegacyTables;
+
+    /**
+     * Ids of the values per cluster. Values are stored as small ids which refer to the id table.
+     */
+    private final Map<String, Map<String, Short>> valueIds = new ConcurrentHashMap<>();
+
+    /**
+     * Values which weren't written to the database yet. Only the latest value per player and cluster is kept.
+     */
+    private final Map<ValueKey, String> pendingWrites = new ConcurrentHashMap<>();
+
+    /**
+     * Names of the clusters that values were written for, used to look up the pending values of a single player
+     */
+    private final Set<String> writtenClusters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether or not a flush because of a full batch is already queued
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    /**
+     * Amount of writes that got dropped because too many were pending since the last warning
+     */
+    private final AtomicInteger droppedWrites = new AtomicInteger(0);
+
+    /**
+     * The time when the last warning about dropped writes was logged
+     */
+    private final AtomicLong lastDropWarning = new AtomicLong(0);
+
+    private final int writeBatchSize;
+    private final int maxPendingWrites;
+    private ScheduledTask writeTask = null;
+
     public MysqlStorage(ServerClusters plugin, String name) throws InvalidPropertiesFormatException, SQLException {
         super(plugin, name);
 
@@ -60,8 +117,15 @@ public class MysqlStorage extends ValueStorage {
             ds.setPassword(plugin.getConfig().getString("mysql.password"));
             ds.setConnectionTimeout(5000);
 
+            migrateLegacyTables = plugin.getConfig().getBoolean("mysql.migrateLegacyTables", true);
+
             plugin.getLogger().info("Initializing Database...");
             initDb();
+
+            writeBatchSize = Math.max(1, plugin.getConfig().getInt("mysql.writeBatchSize", 100));
+            maxPendingWrites = Math.max(writeBatchSize, plugin.getConfig().getInt("mysql.maxPendingWrites", 10000));
+            int writeInterval = Math.max(1, plugin.getConfig().getInt("mysql.writeInterval", 2));
+            writeTask = plugin.getProxy().getScheduler().schedule(plugin, this::flush, writeInterval, writeInterval, TimeUnit.SECONDS);
         } else {
             plugin.getLogger().warning("MySQL settings not or not fully configured! Falling back to YAML backend!");
             throw new InvalidPropertiesFormatException("We are missing at least one parameter to establish a database connection!");
@@ -90,50 +154,329 @@ public class MysqlStorage extends ValueStorage {
     private void initDb() {
         try (Connection conn = ds.getConnection();
              Statement sta = conn.createStatement()){
-            sta.execute("CREATE TABLE IF NOT EXISTS `" + dbtableprefix + name + "` ( `playerid` char(36) NOT NULL, `value` varchar(256) NOT NULL, PRIMARY KEY (`playerid`)) ENGINE=InnoDB DEFAULT CHARSET=utf8;");
-            sta.close();
+            sta.execute("CREATE TABLE IF NOT EXISTS `" + dbtableprefix + name + "` ( `playerid` char(36) NOT NULL, `cluster` varchar(64) NOT NULL, `valueid` smallint NOT NULL, PRIMARY KEY (`playerid`, `cluster`)) ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+            sta.execute("CREATE TABLE IF NOT EXISTS `" + getIdTable() + "` ( `cluster` varchar(64) NOT NULL, `id` smallint NOT NULL, `value` varchar(256) NOT NULL, PRIMARY KEY (`cluster`, `id`), UNIQUE KEY (`cluster`, `value`)) ENGINE=InnoDB DEFAULT CHARSET=utf8;");
         } catch (SQLException e) {
             plugin.getLogger().log(Level.SEVERE, "Could not initialize the tables! ", e);
         }
     }
 
+    private static boolean hasColumn(DatabaseMetaData meta, String table, String column) throws SQLException {
+        try (ResultSet rs = meta.getColumns(null, null, table, column)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Get the name of the table which maps the ids to the actual values. This doesn't start
+     * with the name of the storage so that it can't collide with a legacy per-cluster table.
+     * @return The name of the id table
+     */
+    private String getIdTable() {
+        return dbtableprefix + "ids_" + name;
+    }
+
+    /**
+     * Get the id of a value on a cluster. If the value doesn't have an id yet a new one gets
+     * added to the id table. This can be called by multiple proxies using the same database.
+     * @param conn      The connection to use
+     * @param cluster   The name of the cluster
+     * @param value     The value
+     * @return          The id of the value
+     * @throws SQLException If the id couldn't be loaded or created
+     */
+    private short getValueId(Connection conn, String cluster, String value) throws SQLException {
+        Map<String, Short> ids = valueIds.computeIfAbsent(cluster, c -> new ConcurrentHashMap<>());
+        Short id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        String selectSql = "SELECT `id` FROM `" + getIdTable() + "` WHERE `cluster`=? AND `value`=?";
+        String insertSql = "INSERT IGNORE INTO `" + getIdTable() + "` (`cluster`,`id`,`value`) SELECT ?, COALESCE(MAX(`id`), -1) + 1, ? FROM `" + getIdTable() + "` WHERE `cluster`=?";
+        // Another proxy might have taken the same id at the same time, in that case the insert gets ignored and we try again
+        for (int i = 0; i < 10; i++) {
+            try (PreparedStatement sta = conn.prepareStatement(selectSql)) {
+                sta.setString(1, cluster);
+                sta.setString(2, value);
+                ResultSet rs = sta.executeQuery();
+                if (rs.next()) {
+                    id = rs.getShort("id");
+                    ids.put(value, id);
+                    return id;
+                }
+            }
+            try (PreparedStatement sta = conn.prepareStatement(insertSql)) {
+                sta.setString(1, cluster);
+                sta.setString(2, value);
+                sta.setString(3, cluster);
+                sta.executeUpdate();
+            }
+        }
+        throw new SQLException("Could not create an id for value " + value + " on cluster " + cluster + " in " + getIdTable() + "!");
+    }
+
     @Override
-    public String getValue(UUID playerId) {
-        String sql = "SELECT `value`from " + dbtableprefix + name + " WHERE playerid=?";
+    public ValueStorage getStorage(String cluster) {
+        if (migrateLegacyTables) {
+            migrateLegacyTable(cluster);
+        }
+        return super.getStorage(cluster);
+    }
+
+    /**
+     * Copy the values of the old table of a cluster into the shared table and rename the old table afterwards
+     * @param cluster The name of the cluster
+     */
+    private void migrateLegacyTable(String cluster) {
+        String legacyTable = dbtableprefix + name + "_" + cluster.replace(' ', '_');
+        try (Connection conn = ds.getConnection()) {
+            if (!hasColumn(conn.getMetaData(), legacyTable, "playerid")) {
+                return;
+            }
+            plugin.getLogger().log(Level.INFO, "Migrating values of cluster " + cluster + " from table " + legacyTable + " to " + dbtableprefix + name + "...");
+            List<String> legacyValues = new ArrayList<>();
+            try (Statement sta = conn.createStatement()) {
+                ResultSet rs = sta.executeQuery("SELECT DISTINCT `value` FROM `" + legacyTable + "`");
+                while (rs.next()) {
+                    legacyValues.add(rs.getString("value"));
+                }
+            }
+            for (String value : legacyValues) {
+                getValueId(conn, cluster, value);
+            }
+            // Values that already exist in the shared table are newer and are kept
+            try (PreparedStatement sta = conn.prepareStatement("INSERT IGNORE INTO `" + dbtableprefix + name + "` (`playerid`,`cluster`,`valueid`) SELECT l.`playerid`, ?, i.`id` FROM `" + legacyTable + "` l JOIN `" + getIdTable() + "` i ON i.`cluster`=? AND i.`value`=l.`value`")) {
+                sta.setString(1, cluster);
+                sta.setString(2, cluster);
+                int migrated = sta.executeUpdate();
+                plugin.getLogger().log(Level.INFO, "Migrated " + migrated + " values of cluster " + cluster);
+            }
+            try (Statement sta = conn.createStatement()) {
+                sta.execute("RENAME TABLE `" + legacyTable + "` TO `" + legacyTable + "_migrated`");
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "MySQL-Error! Could not migrate the legacy table " + legacyTable + "!", e);
+        }
+    }
+
+    @Override
+    public String getValue(String cluster, UUID playerId) {
+        String pending = pendingWrites.get(new ValueKey(playerId, cluster));
+        if (pending != null) {
+            return pending;
+        }
+        String sql = "SELECT i.`value` FROM `" + dbtableprefix + name + "` v JOIN `" + getIdTable() + "` i ON i.`cluster`=v.`cluster` AND i.`id`=v.`valueid` WHERE v.`playerid`=? AND v.`cluster`=?";
         try (Connection conn = ds.getConnection();
              PreparedStatement sta = conn.prepareStatement(sql)) {
             sta.setString(1, playerId.toString());
+            sta.setString(2, cluster);
             ResultSet rs = sta.executeQuery();
             if (rs.next()) {
                 return rs.getString("value");
             }
             return null;
         } catch (SQLException e) {
-            plugin.getLogger().log(Level.SEVERE, "MySQL-Error! Something went wrong while fetching data for player with the id " + playerId + "! Does the table \"" + dbtableprefix + "_" + name + "\" exist?", e);
-            return null;
+            throw new StorageException("MySQL-Error! Something went wrong while fetching data for player with the id " + playerId + " on cluster " + cluster + "! Does the table \"" + dbtableprefix + name + "\" exist?", e);
         }
     }
 
     @Override
-    public void putValue(final UUID playerId, final String value) {
+    public Map<String, String> getValues(UUID playerId) {
+        Map<String, String> values = new HashMap<>();
+        String sql = "SELECT v.`cluster`, i.`value` FROM `" + dbtableprefix + name + "` v JOIN `" + getIdTable() + "` i ON i.`cluster`=v.`cluster` AND i.`id`=v.`valueid` WHERE v.`playerid`=?";
+        try (Connection conn = ds.getConnection();
+             PreparedStatement sta = conn.prepareStatement(sql)) {
+            sta.setString(1, playerId.toString());
+            ResultSet rs = sta.executeQuery();
+            while (rs.next()) {
+                values.put(rs.getString("cluster"), rs.getString("value"));
+            }
+        } catch (SQLException e) {
+            throw new StorageException("MySQL-Error! Something went wrong while fetching data for player with the id " + playerId + "! Does the table \"" + dbtableprefix + name + "\" exist?", e);
+        }
+        if (!pendingWrites.isEmpty()) {
+            // Only a few clusters exist, looking up each of them is cheaper than going through all pending writes
+            for (String cluster : writtenClusters) {
+                String pending = pendingWrites.get(new ValueKey(playerId, cluster));
+                if (pending != null) {
+                    values.put(cluster, pending);
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void putValue(String cluster, UUID playerId, String value) {
         if (value.length() > 256) {
             throw new IllegalArgumentException("Value is longer than 256 chars! (" + value.length() + ")");
         }
-        plugin.getProxy().getScheduler().runAsync(plugin, () -> {
-            String sql = "INSERT INTO " + dbtableprefix + name + " (`playerid`,`value`) VALUES (?, ?) ON DUPLICATE KEY UPDATE value=VALUES(`value`)";
-            try (Connection conn = ds.getConnection();
-                 PreparedStatement sta = conn.prepareStatement(sql)) {
-                sta.setString(1, playerId.toString());
-                sta.setString(2, value);
-                sta.executeQuery();
+        ValueKey key = new ValueKey(playerId, cluster);
+        writtenClusters.add(cluster);
+        // Changes of players that are already pending only replace the old value and are always kept
+        if (pendingWrites.replace(key, value) == null) {
+            if (pendingWrites.size() >= maxPendingWrites) {
+                // The database can't keep up (or is down), never block the event thread for it
+                droppedWrites.incrementAndGet();
+                warnDroppedWrites();
+            } else {
+                pendingWrites.put(key, value);
+            }
+        }
+        if (pendingWrites.size() >= writeBatchSize && flushQueued.compareAndSet(false, true)) {
+            plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+                flushQueued.set(false);
+                flush();
+            });
+        }
+    }
+
+    private void warnDroppedWrites() {
+        long now = System.currentTimeMillis();
+        long last = lastDropWarning.get();
+        if (now - last >= 60 * 1000 && lastDropWarning.compareAndSet(last, now)) {
+            plugin.getLogger().log(Level.WARNING, maxPendingWrites + " pending writes for " + dbtableprefix + name + "! Dropped " + droppedWrites.getAndSet(0) + " changes since the last warning.");
+        }
+    }
+
+    /**
+     * Write all pending values to the database in batches. If a batch fails for a reason that won't go away
+     * by itself (e.g. a value that doesn't fit into its column) it gets written row by row and the rows that
+     * can't be written get dropped so that they don't block all later writes.
+     */
+    public synchronized void flush() {
+        while (!pendingWrites.isEmpty()) {
+            Map<ValueKey, String> batch = new LinkedHashMap<>();
+            for (Map.Entry<ValueKey, String> entry : pendingWrites.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue());
+                if (batch.size() >= writeBatchSize) {
+                    break;
+                }
+            }
+            try (Connection conn = ds.getConnection()) {
+                try {
+                    writeBatch(conn, batch);
+                } catch (SQLException e) {
+                    if (isTransient(e)) {
+                        throw e;
+                    }
+                    plugin.getLogger().log(Level.WARNING, "MySQL-Error! Could not insert the data of " + batch.size() + " players at once! Inserting them one by one.", e);
+                    writeSingle(conn, batch);
+                }
             } catch (SQLException e) {
-                plugin.getLogger().log(Level.SEVERE, "MySQL-Error! Something went wrong while inserting data for player with the id " + playerId + "!", e);
+                plugin.getLogger().log(Level.SEVERE, "MySQL-Error! Something went wrong while inserting data for " + batch.size() + " players! Retrying with the next flush.", e);
+                return;
+            }
+            for (Map.Entry<ValueKey, String> entry : batch.entrySet()) {
+                // Only remove it if it didn't get updated in the meantime
+                pendingWrites.remove(entry.getKey(), entry.getValue());
             }
-        });
+        }
+    }
+
+    private String getInsertSql() {
+        return "INSERT INTO `" + dbtableprefix + name + "` (`playerid`,`cluster`,`valueid`) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE valueid=VALUES(`valueid`)";
+    }
+
+    /**
+     * Write values in one transaction
+     * @param conn  The connection to use
+     * @param batch The values to write
+     * @throws SQLException If any of the values couldn't be written, none are written then
+     */
+    private void writeBatch(Connection conn, Map<ValueKey, String> batch) throws SQLException {
+        // New ids need to be visible to other proxies right away so they are created outside of the transaction
+        Map<ValueKey, Short> ids = new HashMap<>();
+        for (Map.Entry<ValueKey, String> entry : batch.entrySet()) {
+            ids.put(entry.getKey(), getValueId(conn, entry.getKey().cluster, entry.getValue()));
+        }
+        try (PreparedStatement sta = conn.prepareStatement(getInsertSql())) {
+            conn.setAutoCommit(false);
+            try {
+                for (Map.Entry<ValueKey, Short> entry : ids.entrySet()) {
+                    sta.setString(1, entry.getKey().playerId.toString());
+                    sta.setString(2, entry.getKey().cluster);
+                    sta.setShort(3, entry.getValue());
+                    sta.addBatch();
+                }
+                sta.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Write values one by one and drop the ones that can't be written
+     * @param conn  The connection to use
+     * @param batch The values to write
+     * @throws SQLException If writing failed for a transient reason, the values should be retried later then
+     */
+    private void writeSingle(Connection conn, Map<ValueKey, String> batch) throws SQLException {
+        for (Map.Entry<ValueKey, String> entry : batch.entrySet()) {
+            try (PreparedStatement sta = conn.prepareStatement(getInsertSql())) {
+                sta.setString(1, entry.getKey().playerId.toString());
+                sta.setString(2, entry.getKey().cluster);
+                sta.setShort(3, getValueId(conn, entry.getKey().cluster, entry.getValue()));
+                sta.executeUpdate();
+            } catch (SQLException e) {
+                if (isTransient(e)) {
+                    throw e;
+                }
+                plugin.getLogger().log(Level.SEVERE, "MySQL-Error! Dropping the value " + entry.getValue() + " of player " + entry.getKey().playerId + " on cluster " + entry.getKey().cluster + " as it can't be written!", e);
+            }
+        }
+    }
+
+    /**
+     * Check whether or not an error might go away when retrying later, e.g. because the connection was lost
+     * @param e The error
+     * @return <tt>true</tt> if it's a transient, connection (SQL state 08) or transaction rollback (SQL state 40) error
+     */
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || state != null && (state.startsWith("08") || state.startsWith("40"));
     }
 
     @Override
     public void close() {
+        if (writeTask != null) {
+            writeTask.cancel();
+            writeTask = null;
+        }
+        flush();
         ds.close();
     }
+
+    private static class ValueKey {
+        private final UUID playerId;
+        private final String cluster;
+
+        private ValueKey(UUID playerId, String cluster) {
+            this.playerId = playerId;
+            this.cluster = cluster;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ValueKey)) {
+                return false;
+            }
+            ValueKey other = (ValueKey) o;
+            return playerId.equals(other.playerId) && cluster.equals(other.cluster);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * playerId.hashCode() + cluster.hashCode();
+        }
+    }
 }
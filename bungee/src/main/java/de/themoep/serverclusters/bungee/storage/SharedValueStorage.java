@@ -0,0 +1,87 @@
+package de.themoep.serverclusters.bungee.storage;
+
+import de.themoep.serverclusters.bungee.ServerClusters;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A storage which stores the values of all clusters together so that
+ * the values of a player for every cluster can be queried at once
+ */
+public abstract class SharedValueStorage {
+
+    protected final ServerClusters plugin;
+    protected final String name;
+
+    public SharedValueStorage(ServerClusters plugin, String name) {
+        this.plugin = plugin;
+        this.name = name.replace(' ', '_');
+    }
+
+    /**
+     * Get the value of a player on a cluster
+     * @param cluster   The name of the cluster
+     * @param playerId  The UUID of the player
+     * @return          The value or <tt>null</tt> if none is stored
+     * @throws StorageException If the value could not be read
+     */
+    public abstract String getValue(String cluster, UUID playerId);
+
+    /**
+     * Get the values of a player on all clusters
+     * @param playerId  The UUID of the player
+     * @return          A map of cluster names to the value of the player on that cluster
+     * @throws StorageException If the values could not be read
+     */
+    public abstract Map<String, String> getValues(UUID playerId);
+
+    /**
+     * Set the value of a player on a cluster
+     * @param cluster   The name of the cluster
+     * @param playerId  The UUID of the player
+     * @param value     The value
+     */
+    public abstract void putValue(String cluster, UUID playerId, String value);
+
+    /**
+     * Get a view on the values of a single cluster
+     * @param cluster   The name of the cluster
+     * @return          A storage for only the values of that cluster
+     */
+    public ValueStorage getStorage(String cluster) {
+        return new ClusterValueStorage(this, cluster);
+    }
+
+    public abstract void close();
+
+    /**
+     * The values of a single cluster in a shared storage
+     */
+    private static class ClusterValueStorage extends ValueStorage {
+
+        private final SharedValueStorage storage;
+        private final String cluster;
+
+        private ClusterValueStorage(SharedValueStorage storage, String cluster) {
+            super(storage.plugin, storage.name + "_" + cluster);
+            this.storage = storage;
+            this.cluster = cluster;
+        }
+
+        @Override
+        public String getValue(UUID playerId) {
+            return storage.getValue(cluster, playerId);
+        }
+
+        @Override
+        public void putValue(UUID playerId, String value) {
+            storage.putValue(cluster, playerId, value);
+        }
+
+        @Override
+        public void close() {
+            // The shared storage gets closed by its owner
+        }
+    }
+}
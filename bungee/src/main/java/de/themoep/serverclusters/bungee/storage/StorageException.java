@@ -0,0 +1,11 @@
+package de.themoep.serverclusters.bungee.storage;
+
+/**
+ * Thrown when a storage could not be read, to tell a failed lookup apart from a missing value
+ */
+public class StorageException extends RuntimeException {
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
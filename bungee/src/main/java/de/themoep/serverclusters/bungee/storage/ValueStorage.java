@@ -23,6 +23,12 @@ public abstract class ValueStorage {
         return null;
     }
 
+    /**
+     * Get the value of a player
+     * @param playerId  The UUID of the player
+     * @return          The value or <tt>null</tt> if none is stored
+     * @throws StorageException If the value could not be read
+     */
     public abstract String getValue(UUID playerId);
 
     public abstract void putValue(UUID playerId, String value);
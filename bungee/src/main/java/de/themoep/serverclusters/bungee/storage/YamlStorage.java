@@ -1,46 +1,142 @@
 package de.themoep.serverclusters.bungee.storage;
 
-import de.themoep.bungeeplugin.FileConfiguration;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.config.Configuration;
+import net.md_5.bungee.config.ConfigurationProvider;
+import net.md_5.bungee.config.YamlConfiguration;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 public class YamlStorage extends ValueStorage {
 
-    private FileConfiguration config;
+    private static final ConfigurationProvider YAML = ConfigurationProvider.getProvider(YamlConfiguration.class);
+
+    private final File file;
+
+    /**
+     * The values of this storage, these are the source of truth and get written to the file
+     */
+    private final Map<UUID, String> values = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of changes that weren't written to the disk yet
+     */
+    private final AtomicInteger dirty = new AtomicInteger(0);
+
+    /**
+     * Whether or not a threshold triggered flush is already queued
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    private final boolean writeBehind;
+    private final int flushThreshold;
+    private ScheduledTask flushTask = null;
 
     public YamlStorage(ServerClusters plugin, String name) {
         super(plugin, name);
+        file = new File(plugin.getDataFolder(), name + ".yml");
+        writeBehind = plugin.getConfig().getBoolean("yaml.writeBehind", true);
+        flushThreshold = plugin.getConfig().getInt("yaml.flushThreshold", 1000);
+        load();
+
+        int flushInterval = plugin.getConfig().getInt("yaml.flushInterval", 30);
+        if (writeBehind && flushInterval > 0) {
+            flushTask = plugin.getProxy().getScheduler().schedule(plugin, () -> {
+                if (dirty.get() > 0) {
+                    save();
+                }
+            }, flushInterval, flushInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
         try {
-            config = new FileConfiguration(plugin, name + ".yml");
+            Configuration config = YAML.load(file);
+            for (String key : config.getKeys()) {
+                try {
+                    String value = config.getString(key, null);
+                    if (value != null) {
+                        values.put(UUID.fromString(key), value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    plugin.getLogger().log(Level.WARNING, "Invalid UUID '" + key + "' in " + file.getName() + "! Skipping it.");
+                }
+            }
         } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error while loading config '" + name + ".yml'!");
-            e.printStackTrace();
+            plugin.getLogger().log(Level.SEVERE, "Error while loading config '" + file.getName() + "'!", e);
         }
     }
 
     @Override
     public String getValue(UUID playerId) {
-        return config.getString(playerId.toString());
+        return values.get(playerId);
     }
 
     @Override
     public void putValue(UUID playerId, String value) {
-        config.set(playerId.toString(), value);
-        save();
+        if (value.equals(values.put(playerId, value))) {
+            return;
+        }
+        if (!writeBehind) {
+            dirty.incrementAndGet();
+            save();
+        } else if (dirty.incrementAndGet() >= flushThreshold && flushQueued.compareAndSet(false, true)) {
+            plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+                flushQueued.set(false);
+                save();
+            });
+        }
     }
 
     /**
-     * save configuration to disk
+     * Save the values to disk. This first writes to a temporary file and then replaces the actual file with it.
      */
-    public void save() {
-        config.saveConfig();
+    public synchronized void save() {
+        int written = dirty.get();
+        Configuration config = new Configuration();
+        for (Map.Entry<UUID, String> entry : values.entrySet()) {
+            config.set(entry.getKey().toString(), entry.getValue());
+        }
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            if (!file.getParentFile().exists()) {
+                file.getParentFile().mkdirs();
+            }
+            YAML.save(config, tempFile);
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty.addAndGet(-written);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while saving config '" + file.getName() + "'!", e);
+        }
     }
 
     @Override
     public void close() {
-        save();
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        if (dirty.get() > 0) {
+            save();
+        }
     }
 }
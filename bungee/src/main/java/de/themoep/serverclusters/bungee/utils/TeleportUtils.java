@@ -1,19 +1,27 @@
 package de.themoep.serverclusters.bungee.utils;
 
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
-
 import de.themoep.serverclusters.bungee.Cluster;
 import de.themoep.serverclusters.bungee.LocationInfo;
 import de.themoep.serverclusters.bungee.ServerClusters;
+import de.themoep.serverclusters.bungee.enums.TeleportState;
+import de.themoep.serverclusters.common.protocol.LocationData;
+import de.themoep.serverclusters.common.protocol.PrepareTeleportMessage;
+import de.themoep.serverclusters.common.protocol.Protocol;
+import de.themoep.serverclusters.common.protocol.TeleportToLocationMessage;
+import de.themoep.serverclusters.common.protocol.TeleportToPlayerMessage;
 
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -22,7 +30,11 @@ import java.util.logging.Level;
 public class TeleportUtils {
 
     private final ServerClusters plugin;
-    private Map<UUID, Boolean> teleportingPlayers = new ConcurrentHashMap<>();
+
+    /**
+     * The teleports that the target server didn't report as done yet
+     */
+    private final Map<UUID, PendingTeleport> pendingTeleports = new ConcurrentHashMap<>();
 
     public TeleportUtils(ServerClusters plugin) {
         this.plugin = plugin;
@@ -36,6 +48,7 @@ public class TeleportUtils {
     public void teleportToPlayer(ProxiedPlayer player, ProxiedPlayer target) {
         if (player.getServer().getInfo().getName().equals(target.getServer().getInfo().getName())) {
             player.sendMessage(ChatColor.GREEN + "Teleportiere zu " + ChatColor.YELLOW + target.getName() + ChatColor.GREEN + "...");
+            startTeleport(player, target.getServer().getInfo(), TeleportState.TELEPORTING);
             teleportToPlayerPM(player, target);
         } else {
             Cluster playerCluster = plugin.getClusterManager().getClusterByServer(player.getServer().getInfo().getName());
@@ -54,10 +67,7 @@ public class TeleportUtils {
      * @param target Targeted player
      */
     private void teleportToPlayerPM(ProxiedPlayer player, ProxiedPlayer target) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(player.getName());
-        out.writeUTF(target.getName());
-        target.getServer().sendData("sc:tptoplayer", out.toByteArray());
+        target.getServer().sendData(Protocol.TELEPORT_TO_PLAYER, Protocol.encode(new TeleportToPlayerMessage(player.getUniqueId(), target.getUniqueId())));
     }
 
     /**
@@ -76,6 +86,46 @@ public class TeleportUtils {
         return true;
     }
 
+    /**
+     * Teleports multiple players to the same location. All players get connected
+     * to the server first and then a single message teleports all of them.
+     * @param players  The players to teleport
+     * @param location The location to teleport to
+     * @return <tt>true</tt> if all worked without any error; <tt>false</tt> if the server of the location wasn't found
+     */
+    public boolean teleport(Collection<ProxiedPlayer> players, LocationInfo location) {
+        ServerInfo server = plugin.getProxy().getServerInfo(location.getServer());
+        if (server == null) {
+            plugin.getLogger().log(Level.SEVERE, "Could not teleport " + players.size() + " players as the server " + location.getServer() + " does not exist for the following location object: " + location);
+            return false;
+        }
+        if (players.isEmpty()) {
+            return true;
+        }
+        Cluster targetCluster = plugin.getClusterManager().getClusterByServer(server.getName());
+        LocationData locationData = new LocationData(location.getWorld(), location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch());
+        boolean prepared = false;
+        List<UUID> playerIds = new ArrayList<>(players.size());
+        for (ProxiedPlayer player : players) {
+            if (!player.getServer().getInfo().getName().equals(server.getName())) {
+                if (!prepared) {
+                    prepareTeleport(server, locationData);
+                    prepared = true;
+                }
+                Cluster playerCluster = plugin.getClusterManager().getClusterByServer(player.getServer().getInfo().getName());
+                if (playerCluster != targetCluster) {
+                    player.sendMessage(ChatColor.GREEN + "Verbinde mit " + ChatColor.YELLOW + targetCluster.getName() + ChatColor.GREEN + "...");
+                }
+                connect(player, server);
+            } else {
+                startTeleport(player, server, TeleportState.TELEPORTING);
+            }
+            playerIds.add(player.getUniqueId());
+        }
+        server.sendData(Protocol.TELEPORT_TO_LOCATION, Protocol.encode(new TeleportToLocationMessage(playerIds, locationData)));
+        return true;
+    }
+
     /**
      * Teleport a player to a location on a server
      * @param player Player to teleport
@@ -94,11 +144,23 @@ public class TeleportUtils {
             if (playerCluster != targetCluster) {
                 player.sendMessage(ChatColor.GREEN + "Verbinde mit " + ChatColor.YELLOW + targetCluster.getName() + ChatColor.GREEN + "...");
             }
+            prepareTeleport(server, new LocationData(world, x, y, z, yaw, pitch));
             connect(player, server);
+        } else {
+            startTeleport(player, server, TeleportState.TELEPORTING);
         }
         teleportToLocationPM(player, server, world, x, y, z, yaw, pitch);
     }
 
+    /**
+     * Tell a server to start loading a location that players will get teleported to after they connected
+     * @param server   The server of the location
+     * @param location The location
+     */
+    private void prepareTeleport(ServerInfo server, LocationData location) {
+        server.sendData(Protocol.PREPARE_TELEPORT, Protocol.encode(new PrepareTeleportMessage(location)));
+    }
+
     /**
      * Helper method to send the plugin message for teleporting to locations
      * @param player Player to teleport
@@ -111,15 +173,8 @@ public class TeleportUtils {
      * @param pitch  Pitch of the location
      */
     private void teleportToLocationPM(ProxiedPlayer player, ServerInfo server, String world, double x, double y, double z, float yaw, float pitch) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(player.getName());
-        out.writeUTF(world);
-        out.writeDouble(x);
-        out.writeDouble(y);
-        out.writeDouble(z);
-        out.writeFloat(yaw);
-        out.writeFloat(pitch);
-        server.sendData("sc:tptolocation", out.toByteArray());
+        LocationData location = new LocationData(world, x, y, z, yaw, pitch);
+        server.sendData(Protocol.TELEPORT_TO_LOCATION, Protocol.encode(new TeleportToLocationMessage(player.getUniqueId(), location)));
     }
 
     /**
@@ -128,17 +183,92 @@ public class TeleportUtils {
      * @param serverInfo    The server to connect to
      */
     private void connect(ProxiedPlayer player, ServerInfo serverInfo) {
-        teleportingPlayers.put(player.getUniqueId(), true);
-        player.connect(serverInfo);
-        teleportingPlayers.remove(player.getUniqueId());
+        PendingTeleport pending = startTeleport(player, serverInfo, TeleportState.CONNECTING);
+        player.connect(serverInfo, (success, error) -> {
+            if (success) {
+                pending.state = TeleportState.TELEPORTING;
+            } else if (pendingTeleports.remove(player.getUniqueId(), pending)) {
+                pending.timeoutTask.cancel();
+                if (error != null) {
+                    plugin.getLogger().log(Level.WARNING, "Could not connect " + player.getName() + " to " + serverInfo.getName() + " for a teleport", error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start tracking the teleport of a player. If the target server doesn't report
+     * that the player is ready before the ready timeout the teleport gets dropped.
+     * @param player    The player that gets teleported
+     * @param server    The server that the player gets teleported on
+     * @param state     The state the teleport starts in
+     * @return The pending teleport
+     */
+    private PendingTeleport startTeleport(ProxiedPlayer player, ServerInfo server, TeleportState state) {
+        UUID playerId = player.getUniqueId();
+        PendingTeleport pending = new PendingTeleport(server.getName(), state);
+        pending.timeoutTask = plugin.getProxy().getScheduler().schedule(plugin, () -> {
+            if (pendingTeleports.remove(playerId, pending)) {
+                plugin.getLogger().log(Level.WARNING, "Server " + pending.server + " did not report " + player.getName() + " as ready within " + plugin.getTeleportReadyTimeout() + " seconds! (State: " + pending.state + ")");
+            }
+        }, plugin.getTeleportReadyTimeout(), TimeUnit.SECONDS);
+        PendingTeleport previous = pendingTeleports.put(playerId, pending);
+        if (previous != null) {
+            previous.timeoutTask.cancel();
+        }
+        return pending;
     }
 
     /**
-     * Check whether or not a player is currently teleporting
+     * Mark the teleport of a player as done after the target server reported him as ready
+     * @param playerId  The UUID of the player
+     * @param server    The name of the server that reported the player as ready
+     * @param success   Whether or not the player was teleported
+     */
+    public void onReady(UUID playerId, String server, boolean success) {
+        PendingTeleport pending = pendingTeleports.get(playerId);
+        if (pending == null || !pending.server.equals(server)) {
+            return;
+        }
+        if (pendingTeleports.remove(playerId, pending)) {
+            pending.timeoutTask.cancel();
+            if (!success) {
+                plugin.getLogger().log(Level.INFO, "Teleport of " + playerId + " on " + server + " failed after " + (System.currentTimeMillis() - pending.started) + "ms");
+            }
+        }
+    }
+
+    /**
+     * Stop tracking the teleport of a player, e.g. because he disconnected
+     * @param player    The player
+     */
+    public void clearTeleport(ProxiedPlayer player) {
+        PendingTeleport pending = pendingTeleports.remove(player.getUniqueId());
+        if (pending != null) {
+            pending.timeoutTask.cancel();
+        }
+    }
+
+    /**
+     * Check whether or not a player is currently getting connected to a server because of a teleport
      * @param player    The player to check
+     * @param server    The server the player connects to
      * @return          <tt>true</tt> if he is teleporting; <tt>false</tt> if not
      */
-    public boolean isTeleporting(ProxiedPlayer player) {
-        return teleportingPlayers.containsKey(player.getUniqueId());
+    public boolean isTeleporting(ProxiedPlayer player, ServerInfo server) {
+        PendingTeleport pending = pendingTeleports.get(player.getUniqueId());
+        return pending != null && pending.state == TeleportState.CONNECTING && pending.server.equals(server.getName());
+    }
+
+    private static class PendingTeleport {
+        private final String server;
+        private final long started = System.currentTimeMillis();
+        private volatile TeleportState state;
+        private ScheduledTask timeoutTask;
+
+        private PendingTeleport(String server, TeleportState state) {
+            this.server = server;
+            this.state = state;
+        }
     }
 }
@@ -0,0 +1,207 @@
+package de.themoep.serverclusters.bungee.manager;
+
+import de.themoep.serverclusters.bungee.enums.TeleportTarget;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestStoreTest {
+
+    private static final int THREADS = 8;
+    private static final int RECEIVERS = 50;
+    private static final int MAX_REQUESTS = 5;
+
+    private static TeleportRequest request(UUID senderId, UUID receiverId) {
+        return new TeleportRequest(senderId, "sender-" + senderId, receiverId, "receiver-" + receiverId, TeleportTarget.RECEIVER);
+    }
+
+    private static List<UUID> receivers() {
+        List<UUID> receivers = new ArrayList<>();
+        for (int i = 0; i < RECEIVERS; i++) {
+            receivers.add(UUID.randomUUID());
+        }
+        return receivers;
+    }
+
+    /**
+     * Run a task on all threads at the same time and rethrow anything that one of them threw
+     */
+    private static void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAddReplacesSameSender() {
+        RequestStore store = new RequestStore(MAX_REQUESTS);
+        UUID sender = UUID.randomUUID();
+        UUID receiver = UUID.randomUUID();
+        TeleportRequest first = request(sender, receiver);
+        TeleportRequest second = request(sender, receiver);
+        assertTrue(store.add(first).isEmpty());
+        assertEquals(Collections.singletonList(first), store.add(second));
+        assertEquals(1, store.size());
+        assertSame(second, store.take(receiver, null));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testAddDropsOldest() {
+        RequestStore store = new RequestStore(MAX_REQUESTS);
+        UUID receiver = UUID.randomUUID();
+        List<TeleportRequest> added = new ArrayList<>();
+        for (int i = 0; i < MAX_REQUESTS; i++) {
+            TeleportRequest request = request(UUID.randomUUID(), receiver);
+            added.add(request);
+            assertTrue(store.add(request).isEmpty());
+        }
+        assertEquals(Collections.singletonList(added.get(0)), store.add(request(UUID.randomUUID(), receiver)));
+        assertEquals(MAX_REQUESTS, store.size());
+    }
+
+    @Test
+    public void testTakeBySender() {
+        RequestStore store = new RequestStore(MAX_REQUESTS);
+        UUID receiver = UUID.randomUUID();
+        TeleportRequest first = request(UUID.randomUUID(), receiver);
+        TeleportRequest second = request(UUID.randomUUID(), receiver);
+        store.add(first);
+        store.add(second);
+        assertSame(first, store.take(receiver, first.getSender().toUpperCase(Locale.ROOT)));
+        assertNull(store.take(receiver, first.getSender()));
+        assertSame(second, store.take(receiver, ""));
+        assertNull(store.take(receiver, null));
+        assertEquals(0, store.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentTakeAndRemoveHandleEachRequestOnce() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            RequestStore store = new RequestStore(MAX_REQUESTS);
+            List<UUID> receivers = receivers();
+            List<TeleportRequest> requests = new ArrayList<>();
+            for (UUID receiver : receivers) {
+                for (int i = 0; i < MAX_REQUESTS; i++) {
+                    TeleportRequest request = request(UUID.randomUUID(), receiver);
+                    assertTrue(store.add(request).isEmpty());
+                    requests.add(request);
+                }
+            }
+            assertEquals(requests.size(), store.size());
+
+            Map<TeleportRequest, AtomicInteger> handled = new ConcurrentHashMap<>();
+            for (TeleportRequest request : requests) {
+                handled.put(request, new AtomicInteger());
+            }
+            runConcurrently(thread -> {
+                Random random = new Random(thread);
+                if (thread % 2 == 0) {
+                    // Accepting and denying takes the newest request of a receiver
+                    List<UUID> order = new ArrayList<>(receivers);
+                    Collections.shuffle(order, random);
+                    for (UUID receiver : order) {
+                        TeleportRequest request;
+                        while ((request = store.take(receiver, null)) != null) {
+                            handled.get(request).incrementAndGet();
+                        }
+                    }
+                } else {
+                    // Expiring removes the exact request
+                    List<TeleportRequest> order = new ArrayList<>(requests);
+                    Collections.shuffle(order, random);
+                    for (TeleportRequest request : order) {
+                        if (store.remove(request)) {
+                            handled.get(request).incrementAndGet();
+                        }
+                    }
+                }
+            });
+
+            for (TeleportRequest request : requests) {
+                assertEquals("Request " + request + " was not handled exactly once", 1, handled.get(request).get());
+            }
+            assertEquals(0, store.size());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentAddAndTakeKeepSizeConsistent() throws Exception {
+        RequestStore store = new RequestStore(MAX_REQUESTS);
+        List<UUID> receivers = receivers();
+        List<UUID> senders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            senders.add(UUID.randomUUID());
+        }
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger dropped = new AtomicInteger();
+        AtomicInteger taken = new AtomicInteger();
+        runConcurrently(thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < 20000; i++) {
+                UUID receiver = receivers.get(random.nextInt(receivers.size()));
+                if (random.nextInt(3) == 0) {
+                    if (store.take(receiver, null) != null) {
+                        taken.incrementAndGet();
+                    }
+                } else {
+                    dropped.addAndGet(store.add(request(senders.get(random.nextInt(senders.size())), receiver)).size());
+                    added.incrementAndGet();
+                }
+            }
+        });
+
+        int expected = added.get() - dropped.get() - taken.get();
+        assertEquals(expected, store.size());
+
+        int remaining = 0;
+        for (UUID receiver : receivers) {
+            int count = 0;
+            while (store.take(receiver, null) != null) {
+                count++;
+            }
+            assertTrue("Receiver has " + count + " requests", count <= MAX_REQUESTS);
+            remaining += count;
+        }
+        assertEquals(expected, remaining);
+        assertEquals(0, store.size());
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+}
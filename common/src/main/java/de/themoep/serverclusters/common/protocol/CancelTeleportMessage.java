@@ -0,0 +1,33 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the server to cancel the delayed teleport of a player
+ */
+public class CancelTeleportMessage extends Message {
+
+    private final UUID playerId;
+
+    public CancelTeleportMessage(UUID playerId) {
+        this.playerId = playerId;
+    }
+
+    static CancelTeleportMessage read(MessageBuffer in) {
+        return new CancelTeleportMessage(in.readUuid());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeUuid(playerId);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.CANCEL_TELEPORT;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+}
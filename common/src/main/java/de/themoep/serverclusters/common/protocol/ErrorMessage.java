@@ -0,0 +1,37 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * Sent by the server when something that the proxy requested failed
+ */
+public class ErrorMessage extends Message {
+
+    private final String type;
+    private final String value;
+
+    public ErrorMessage(String type, String value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    static ErrorMessage read(MessageBuffer in) {
+        return new ErrorMessage(in.readString(), in.readString());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeString(type).writeString(value);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.ERROR;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,65 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * A location in a world of a server as it is sent in plugin messages
+ */
+public class LocationData {
+
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float yaw;
+    private final float pitch;
+
+    public LocationData(String world, double x, double y, double z, float yaw, float pitch) {
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.yaw = yaw;
+        this.pitch = pitch;
+    }
+
+    static LocationData read(MessageBuffer in) {
+        return new LocationData(in.readString(), in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat());
+    }
+
+    void write(MessageBuffer out) {
+        out.writeString(world)
+                .writeDouble(x)
+                .writeDouble(y)
+                .writeDouble(z)
+                .writeFloat(yaw)
+                .writeFloat(pitch);
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public float getYaw() {
+        return yaw;
+    }
+
+    public float getPitch() {
+        return pitch;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + world + "] " + x + ", " + y + ", " + z + " (" + yaw + "/" + pitch + ")";
+    }
+}
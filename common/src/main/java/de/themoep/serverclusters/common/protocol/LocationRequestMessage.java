@@ -0,0 +1,45 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the proxy to query the location of a player, the server answers with a {@link PlayerLocationMessage}
+ */
+public class LocationRequestMessage extends Message {
+
+    private final String reason;
+    private final String sender;
+    private final UUID playerId;
+
+    public LocationRequestMessage(String reason, String sender, UUID playerId) {
+        this.reason = reason;
+        this.sender = sender;
+        this.playerId = playerId;
+    }
+
+    static LocationRequestMessage read(MessageBuffer in) {
+        return new LocationRequestMessage(in.readString(), in.readString(), in.readUuid());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeString(reason).writeString(sender).writeUuid(playerId);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.LOCATION_REQUEST;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+}
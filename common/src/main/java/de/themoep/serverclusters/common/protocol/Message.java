@@ -0,0 +1,19 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * A plugin message that is sent between the proxy and the servers
+ */
+public abstract class Message {
+
+    /**
+     * Get the channel this message is sent on
+     * @return The name of the channel
+     */
+    public abstract String getChannel();
+
+    /**
+     * Write the content of this message
+     * @param out The buffer to write to
+     */
+    protected abstract void write(MessageBuffer out);
+}
@@ -0,0 +1,265 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A simple byte buffer to read and write plugin messages with. Buffers for
+ * writing are pooled per thread so encoding a message only allocates its result.
+ */
+public final class MessageBuffer {
+
+    private static final int INITIAL_SIZE = 256;
+
+    /**
+     * Buffers that grew larger than this don't get kept in the pool
+     */
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<MessageBuffer> POOL = ThreadLocal.withInitial(() -> new MessageBuffer(new byte[INITIAL_SIZE], 0));
+
+    private byte[] data;
+    private int position = 0;
+    private int limit;
+
+    private MessageBuffer(byte[] data, int limit) {
+        this.data = data;
+        this.limit = limit;
+    }
+
+    /**
+     * Get the empty buffer of the current thread to write a message to
+     * @return The pooled buffer
+     */
+    static MessageBuffer pooled() {
+        MessageBuffer buffer = POOL.get();
+        if (buffer.data.length > MAX_POOLED_SIZE) {
+            buffer.data = new byte[INITIAL_SIZE];
+        }
+        buffer.position = 0;
+        buffer.limit = 0;
+        return buffer;
+    }
+
+    /**
+     * Wrap a received message to read from it
+     * @param data The bytes of the message
+     * @return A buffer reading from the message
+     */
+    static MessageBuffer wrap(byte[] data) {
+        return new MessageBuffer(data, data.length);
+    }
+
+    /**
+     * Copy the written bytes into a new array
+     * @return The bytes that were written to this buffer
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, limit);
+    }
+
+    /**
+     * Get the amount of bytes that weren't read yet
+     * @return The amount of remaining bytes
+     */
+    public int remaining() {
+        return limit - position;
+    }
+
+    private void ensureWritable(int length) {
+        if (limit + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, limit + length));
+        }
+    }
+
+    private void ensureReadable(int length) {
+        if (length < 0 || length > remaining()) {
+            throw new ProtocolException("Message ended unexpectedly, needed " + length + " more bytes but only " + remaining() + " are left");
+        }
+    }
+
+    public MessageBuffer writeByte(int value) {
+        ensureWritable(1);
+        data[limit++] = (byte) value;
+        return this;
+    }
+
+    public byte readByte() {
+        ensureReadable(1);
+        return data[position++];
+    }
+
+    public MessageBuffer writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public MessageBuffer writeInt(int value) {
+        ensureWritable(4);
+        data[limit++] = (byte) (value >>> 24);
+        data[limit++] = (byte) (value >>> 16);
+        data[limit++] = (byte) (value >>> 8);
+        data[limit++] = (byte) value;
+        return this;
+    }
+
+    public int readInt() {
+        ensureReadable(4);
+        return (data[position++] & 0xFF) << 24
+                | (data[position++] & 0xFF) << 16
+                | (data[position++] & 0xFF) << 8
+                | (data[position++] & 0xFF);
+    }
+
+    public MessageBuffer writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    public long readLong() {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public MessageBuffer writeFloat(float value) {
+        return writeInt(Float.floatToIntBits(value));
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public MessageBuffer writeDouble(double value) {
+        return writeLong(Double.doubleToLongBits(value));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Write an unsigned int with 7 bits per byte, small values only need one byte
+     * @param value The value, must not be negative
+     * @return This buffer
+     */
+    public MessageBuffer writeVarInt(int value) {
+        if (value < 0) {
+            throw new ProtocolException("Negative varint " + value);
+        }
+        while ((value & ~0x7F) != 0) {
+            writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        return writeByte(value);
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            if (shift == 28 && (b & 0x78) != 0) {
+                // Only the lowest three bits of the last byte fit into a non-negative int
+                throw new ProtocolException("Varint is negative or too large");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint is too long");
+    }
+
+    /**
+     * Read the amount of elements that follow. This is checked against the remaining bytes
+     * so that a malformed message can't make the reader allocate huge arrays.
+     * @param minElementSize The minimum amount of bytes that one element takes up
+     * @return The amount of elements
+     * @throws ProtocolException If the remaining bytes can't hold that many elements
+     */
+    public int readCount(int minElementSize) {
+        int count = readVarInt();
+        if (count > remaining() / minElementSize) {
+            throw new ProtocolException("Message claims to contain " + count + " elements but only " + remaining() + " bytes are left");
+        }
+        return count;
+    }
+
+    public MessageBuffer writeUuid(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        return writeLong(uuid.getLeastSignificantBits());
+    }
+
+    public UUID readUuid() {
+        return new UUID(readLong(), readLong());
+    }
+
+    /**
+     * Write a UUID which might be null
+     * @param uuid The UUID or <tt>null</tt>
+     * @return This buffer
+     */
+    public MessageBuffer writeOptionalUuid(UUID uuid) {
+        writeBoolean(uuid != null);
+        return uuid != null ? writeUuid(uuid) : this;
+    }
+
+    public UUID readOptionalUuid() {
+        return readBoolean() ? readUuid() : null;
+    }
+
+    /**
+     * Write a string as its UTF-8 length as a varint followed by the UTF-8 bytes.
+     * The bytes are encoded directly into the buffer.
+     * @param string The string to write
+     * @return This buffer
+     */
+    public MessageBuffer writeString(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        writeVarInt(length);
+        ensureWritable(length);
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                data[limit++] = (byte) c;
+            } else if (c < 0x800) {
+                data[limit++] = (byte) (0xC0 | (c >> 6));
+                data[limit++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                data[limit++] = (byte) (0xF0 | (codePoint >> 18));
+                data[limit++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                data[limit++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                data[limit++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                data[limit++] = (byte) (0xE0 | (c >> 12));
+                data[limit++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                data[limit++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    public String readString() {
+        int length = readVarInt();
+        ensureReadable(length);
+        String string = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+}
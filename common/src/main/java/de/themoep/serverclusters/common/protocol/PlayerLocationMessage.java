@@ -0,0 +1,56 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * Sent by the server as the answer to a {@link LocationRequestMessage}
+ */
+public class PlayerLocationMessage extends Message {
+
+    private final String reason;
+    private final String sender;
+    private final LocationData location;
+
+    /**
+     * @param reason    The reason of the request
+     * @param sender    The sender of the request
+     * @param location  The location of the player, <tt>null</tt> if the player wasn't found
+     */
+    public PlayerLocationMessage(String reason, String sender, LocationData location) {
+        this.reason = reason;
+        this.sender = sender;
+        this.location = location;
+    }
+
+    static PlayerLocationMessage read(MessageBuffer in) {
+        String reason = in.readString();
+        String sender = in.readString();
+        return new PlayerLocationMessage(reason, sender, in.readBoolean() ? LocationData.read(in) : null);
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeString(reason).writeString(sender).writeBoolean(location != null);
+        if (location != null) {
+            location.write(out);
+        }
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.PLAYER_LOCATION;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return The location of the player, <tt>null</tt> if the player wasn't found
+     */
+    public LocationData getLocation() {
+        return location;
+    }
+}
@@ -0,0 +1,32 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * Sent by the proxy before a player gets connected to the server to teleport to a location
+ * so that the server can start loading the location before the player arrives
+ */
+public class PrepareTeleportMessage extends Message {
+
+    private final LocationData location;
+
+    public PrepareTeleportMessage(LocationData location) {
+        this.location = location;
+    }
+
+    static PrepareTeleportMessage read(MessageBuffer in) {
+        return new PrepareTeleportMessage(LocationData.read(in));
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        location.write(out);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.PREPARE_TELEPORT;
+    }
+
+    public LocationData getLocation() {
+        return location;
+    }
+}
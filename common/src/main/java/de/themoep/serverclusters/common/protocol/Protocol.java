@@ -0,0 +1,91 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The plugin message protocol between the proxy and the servers. Every message starts
+ * with the protocol version followed by the content of the message on its channel.
+ */
+public final class Protocol {
+
+    /**
+     * The version of the protocol, needs to be increased when the format of a message changes
+     */
+    public static final byte VERSION = 1;
+
+    public static final String TELEPORT_TO_PLAYER = "sc:tptoplayer";
+    public static final String TELEPORT_TO_LOCATION = "sc:tptolocation";
+    public static final String PREPARE_TELEPORT = "sc:preparetp";
+    public static final String TELEPORT_REQUEST = "sc:addtprequest";
+    public static final String CANCEL_TELEPORT = "sc:cancelteleport";
+    public static final String RUN_COMMAND = "sc:runcommand";
+    public static final String ERROR = "sc:error";
+    public static final String LOCATION_REQUEST = "sc:getlocation";
+    public static final String PLAYER_LOCATION = "sc:playerlocation";
+    public static final String READY = "sc:ready";
+
+    private static final Map<String, Function<MessageBuffer, ? extends Message>> READERS = new HashMap<>();
+
+    static {
+        READERS.put(TELEPORT_TO_PLAYER, TeleportToPlayerMessage::read);
+        READERS.put(TELEPORT_TO_LOCATION, TeleportToLocationMessage::read);
+        READERS.put(PREPARE_TELEPORT, PrepareTeleportMessage::read);
+        READERS.put(TELEPORT_REQUEST, TeleportRequestMessage::read);
+        READERS.put(CANCEL_TELEPORT, CancelTeleportMessage::read);
+        READERS.put(RUN_COMMAND, RunCommandMessage::read);
+        READERS.put(ERROR, ErrorMessage::read);
+        READERS.put(LOCATION_REQUEST, LocationRequestMessage::read);
+        READERS.put(PLAYER_LOCATION, PlayerLocationMessage::read);
+        READERS.put(READY, ReadyMessage::read);
+    }
+
+    private Protocol() {}
+
+    /**
+     * Get all channels of the protocol
+     * @return The names of the channels
+     */
+    public static Set<String> getChannels() {
+        return Collections.unmodifiableSet(READERS.keySet());
+    }
+
+    /**
+     * Encode a message to send it on its channel
+     * @param message The message
+     * @return The bytes of the message
+     */
+    public static byte[] encode(Message message) {
+        MessageBuffer out = MessageBuffer.pooled();
+        out.writeByte(VERSION);
+        message.write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a received message
+     * @param channel   The channel the message was received on
+     * @param data      The bytes of the message
+     * @return The message
+     * @throws ProtocolException If the channel is unknown, the version differs or the message is malformed
+     */
+    public static Message decode(String channel, byte[] data) throws ProtocolException {
+        Function<MessageBuffer, ? extends Message> reader = READERS.get(channel);
+        if (reader == null) {
+            throw new ProtocolException("Unknown channel " + channel);
+        }
+        MessageBuffer in = MessageBuffer.wrap(data);
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new ProtocolException("Received message with protocol version " + version + " on " + channel + " but we use version " + VERSION + "! Make sure the plugin versions on the proxy and the servers match.");
+        }
+        Message message = reader.apply(in);
+        if (in.remaining() > 0) {
+            throw new ProtocolException("Message on " + channel + " has " + in.remaining() + " unexpected bytes at the end");
+        }
+        return message;
+    }
+}
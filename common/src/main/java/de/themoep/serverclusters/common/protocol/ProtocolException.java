@@ -0,0 +1,13 @@
+package de.themoep.serverclusters.common.protocol;
+
+/**
+ * Thrown when a plugin message can't be encoded or decoded
+ */
+public class ProtocolException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,44 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the server after a player joined it and his pending teleport was run
+ */
+public class ReadyMessage extends Message {
+
+    private final UUID playerId;
+    private final boolean success;
+
+    public ReadyMessage(UUID playerId, boolean success) {
+        this.playerId = playerId;
+        this.success = success;
+    }
+
+    static ReadyMessage read(MessageBuffer in) {
+        return new ReadyMessage(in.readUuid(), in.readBoolean());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeUuid(playerId);
+        out.writeBoolean(success);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.READY;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Get whether or not the player was teleported
+     * @return <tt>true</tt> if he was teleported; <tt>false</tt> if the teleport failed
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+}
@@ -0,0 +1,80 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the server to run a command which needs the location of the sender on the proxy
+ */
+public class RunCommandMessage extends Message {
+
+    private final UUID senderId;
+    private final String command;
+    private final LocationData location;
+    private final String[] args;
+
+    /**
+     * @param senderId  The UUID of the player that ran the command, <tt>null</tt> if it was the console
+     * @param command   The name of the command
+     * @param location  The location of the sender, <tt>null</tt> if it doesn't have one
+     * @param args      The arguments of the command
+     */
+    public RunCommandMessage(UUID senderId, String command, LocationData location, String[] args) {
+        this.senderId = senderId;
+        this.command = command;
+        this.location = location;
+        this.args = args;
+    }
+
+    static RunCommandMessage read(MessageBuffer in) {
+        UUID senderId = in.readOptionalUuid();
+        String command = in.readString();
+        LocationData location = in.readBoolean() ? LocationData.read(in) : null;
+        // Every argument takes at least the byte of its length
+        String[] args = new String[in.readCount(1)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readString();
+        }
+        return new RunCommandMessage(senderId, command, location, args);
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeOptionalUuid(senderId);
+        out.writeString(command);
+        out.writeBoolean(location != null);
+        if (location != null) {
+            location.write(out);
+        }
+        out.writeVarInt(args.length);
+        for (String arg : args) {
+            out.writeString(arg);
+        }
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.RUN_COMMAND;
+    }
+
+    /**
+     * @return The UUID of the player that ran the command, <tt>null</tt> if it was the console
+     */
+    public UUID getSenderId() {
+        return senderId;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return The location of the sender, <tt>null</tt> if it doesn't have one
+     */
+    public LocationData getLocation() {
+        return location;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+}
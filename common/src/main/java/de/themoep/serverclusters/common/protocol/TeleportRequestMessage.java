@@ -0,0 +1,33 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the proxy when a delayed teleport of a player starts so that the server can cancel it when the player moves
+ */
+public class TeleportRequestMessage extends Message {
+
+    private final UUID playerId;
+
+    public TeleportRequestMessage(UUID playerId) {
+        this.playerId = playerId;
+    }
+
+    static TeleportRequestMessage read(MessageBuffer in) {
+        return new TeleportRequestMessage(in.readUuid());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeUuid(playerId);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.TELEPORT_REQUEST;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+}
@@ -0,0 +1,58 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sent by the proxy to teleport one or more players to a location on the server
+ */
+public class TeleportToLocationMessage extends Message {
+
+    private final List<UUID> playerIds;
+    private final LocationData location;
+
+    public TeleportToLocationMessage(UUID playerId, LocationData location) {
+        this(Collections.singletonList(playerId), location);
+    }
+
+    public TeleportToLocationMessage(List<UUID> playerIds, LocationData location) {
+        this.playerIds = playerIds;
+        this.location = location;
+    }
+
+    static TeleportToLocationMessage read(MessageBuffer in) {
+        int count = in.readCount(16);
+        List<UUID> playerIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            playerIds.add(in.readUuid());
+        }
+        return new TeleportToLocationMessage(playerIds, LocationData.read(in));
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeVarInt(playerIds.size());
+        for (UUID playerId : playerIds) {
+            out.writeUuid(playerId);
+        }
+        location.write(out);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.TELEPORT_TO_LOCATION;
+    }
+
+    /**
+     * @return The UUIDs of all players that should be teleported to the location
+     */
+    public List<UUID> getPlayerIds() {
+        return playerIds;
+    }
+
+    public LocationData getLocation() {
+        return location;
+    }
+}
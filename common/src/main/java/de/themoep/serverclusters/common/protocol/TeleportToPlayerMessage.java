@@ -0,0 +1,39 @@
+package de.themoep.serverclusters.common.protocol;
+
+import java.util.UUID;
+
+/**
+ * Sent by the proxy to teleport a player to another player on the same server
+ */
+public class TeleportToPlayerMessage extends Message {
+
+    private final UUID playerId;
+    private final UUID targetId;
+
+    public TeleportToPlayerMessage(UUID playerId, UUID targetId) {
+        this.playerId = playerId;
+        this.targetId = targetId;
+    }
+
+    static TeleportToPlayerMessage read(MessageBuffer in) {
+        return new TeleportToPlayerMessage(in.readUuid(), in.readUuid());
+    }
+
+    @Override
+    protected void write(MessageBuffer out) {
+        out.writeUuid(playerId).writeUuid(targetId);
+    }
+
+    @Override
+    public String getChannel() {
+        return Protocol.TELEPORT_TO_PLAYER;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    public UUID getTargetId() {
+        return targetId;
+    }
+}
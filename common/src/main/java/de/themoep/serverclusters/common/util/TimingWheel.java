@@ -0,0 +1,219 @@
+package de.themoep.serverclusters.common.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A hashed timing wheel to expire keys after a delay. Scheduling, rescheduling and
+ * cancelling a key is constant time and advancing the wheel only touches the slots
+ * of the ticks that passed. The precision of the expiry is one tick.
+ * <p>
+ * The wheel doesn't run on its own, {@link #advance(long)} needs to be called regularly.
+ * All methods are synchronized so that a wheel can be shared between threads.
+ * @param <K> The type of the keys
+ */
+public class TimingWheel<K> {
+
+    private final Node<K>[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final Consumer<K> expiryHandler;
+    private final LongSupplier clock;
+
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+
+    private final long startTime;
+    private long currentTick = 0;
+
+    /**
+     * Create a new timing wheel
+     * @param slots         The amount of slots of the wheel, gets rounded up to the next power of two.
+     *                      Should be about the usual delay divided by the tick duration.
+     * @param tickDuration  The duration of a tick in milliseconds
+     * @param expiryHandler Gets called with every key that expired
+     */
+    public TimingWheel(int slots, long tickDuration, Consumer<K> expiryHandler) {
+        this(slots, tickDuration, expiryHandler, System::currentTimeMillis);
+    }
+
+    /**
+     * Create a new timing wheel which uses a different clock
+     * @param slots         The amount of slots of the wheel
+     * @param tickDuration  The duration of a tick in milliseconds
+     * @param expiryHandler Gets called with every key that expired
+     * @param clock         Supplies the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(int slots, long tickDuration, Consumer<K> expiryHandler, LongSupplier clock) {
+        if (slots < 1 || slots > 1 << 30) {
+            throw new IllegalArgumentException("Slots must be between 1 and 2^30, was " + slots);
+        }
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("Tick duration must be positive, was " + tickDuration);
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        this.wheel = (Node<K>[]) new Node<?>[size];
+        this.mask = size - 1;
+        this.tickDuration = tickDuration;
+        this.expiryHandler = expiryHandler;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+    }
+
+    /**
+     * Schedule a key to expire. If the key was already scheduled its old expiry is replaced.
+     * @param key   The key
+     * @param delay The delay in milliseconds after which the key should expire
+     */
+    public synchronized void schedule(K key, long delay) {
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            unlink(node);
+        } else {
+            node = new Node<>(key);
+            nodes.put(key, node);
+        }
+        long deadline = clock.getAsLong() + Math.max(0, delay) - startTime;
+        // Round up so that a key never expires early
+        node.deadlineTick = Math.max(currentTick + 1, (deadline + tickDuration - 1) / tickDuration);
+        link(node);
+    }
+
+    /**
+     * Cancel the expiry of a key
+     * @param key   The key
+     * @return <tt>true</tt> if the key was scheduled; <tt>false</tt> if not
+     */
+    public synchronized boolean cancel(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    /**
+     * Check whether or not a key is scheduled to expire
+     * @param key   The key
+     * @return <tt>true</tt> if it is scheduled; <tt>false</tt> if not
+     */
+    public synchronized boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * Get the amount of keys that are scheduled
+     * @return The amount of keys
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Check whether or not no key is scheduled
+     * @return <tt>true</tt> if the wheel is empty; <tt>false</tt> if not
+     */
+    public synchronized boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Remove all keys without expiring them
+     */
+    public synchronized void clear() {
+        nodes.clear();
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = null;
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time and expire all keys whose delay passed.
+     * The expiry handler gets called outside of the lock of the wheel.
+     * @return The amount of keys that expired
+     */
+    public int advance() {
+        return advance(clock.getAsLong());
+    }
+
+    /**
+     * Advance the wheel to a time and expire all keys whose delay passed.
+     * The expiry handler gets called outside of the lock of the wheel.
+     * @param now   The time to advance to in milliseconds
+     * @return The amount of keys that expired
+     */
+    public int advance(long now) {
+        Node<K> expired = null;
+        int count = 0;
+        synchronized (this) {
+            long targetTick = (now - startTime) / tickDuration;
+            if (targetTick <= currentTick) {
+                return 0;
+            }
+            // Every slot needs to be visited at most once even if more ticks than slots passed
+            long fromTick = Math.max(currentTick + 1, targetTick - wheel.length + 1);
+            for (long tick = fromTick; tick <= targetTick; tick++) {
+                int slot = (int) (tick & mask);
+                Node<K> node = wheel[slot];
+                while (node != null) {
+                    Node<K> next = node.next;
+                    if (node.deadlineTick <= targetTick) {
+                        unlink(node);
+                        nodes.remove(node.key);
+                        node.next = expired;
+                        expired = node;
+                        count++;
+                    }
+                    node = next;
+                }
+            }
+            currentTick = targetTick;
+        }
+        for (Node<K> node = expired; node != null; node = node.next) {
+            expiryHandler.accept(node.key);
+        }
+        return count;
+    }
+
+    private void link(Node<K> node) {
+        int slot = (int) (node.deadlineTick & mask);
+        node.slot = slot;
+        node.prev = null;
+        node.next = wheel[slot];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        wheel[slot] = node;
+    }
+
+    private void unlink(Node<K> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            wheel[node.slot] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static class Node<K> {
+        private final K key;
+        private long deadlineTick;
+        private int slot;
+        private Node<K> prev;
+        private Node<K> next;
+
+        private Node(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package de.themoep.serverclusters.common.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProtocolTest {
+
+    private static final UUID PLAYER = UUID.fromString("1f2e3d4c-5b6a-4978-8695-a4b3c2d1e0f9");
+    private static final UUID TARGET = UUID.fromString("0a1b2c3d-4e5f-4061-8273-948596a7b8c9");
+    private static final LocationData LOCATION = new LocationData("world_nether", -123.5, 64, 1e7, 90.5f, -45f);
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T roundTrip(T message) {
+        byte[] data = Protocol.encode(message);
+        assertEquals(Protocol.VERSION, data[0]);
+        Message decoded = Protocol.decode(message.getChannel(), data);
+        assertEquals(message.getClass(), decoded.getClass());
+        return (T) decoded;
+    }
+
+    private static void assertLocation(LocationData expected, LocationData actual) {
+        assertEquals(expected.getWorld(), actual.getWorld());
+        assertEquals(expected.getX(), actual.getX(), 0);
+        assertEquals(expected.getY(), actual.getY(), 0);
+        assertEquals(expected.getZ(), actual.getZ(), 0);
+        assertEquals(expected.getYaw(), actual.getYaw(), 0);
+        assertEquals(expected.getPitch(), actual.getPitch(), 0);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private static void assertRejected(String channel, byte[] data) {
+        try {
+            Protocol.decode(channel, data);
+            fail("Decoding " + Arrays.toString(data) + " on " + channel + " should have failed");
+        } catch (ProtocolException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void teleportToPlayer() {
+        TeleportToPlayerMessage message = roundTrip(new TeleportToPlayerMessage(PLAYER, TARGET));
+        assertEquals(PLAYER, message.getPlayerId());
+        assertEquals(TARGET, message.getTargetId());
+    }
+
+    @Test
+    public void teleportToLocation() {
+        TeleportToLocationMessage message = roundTrip(new TeleportToLocationMessage(Arrays.asList(PLAYER, TARGET), LOCATION));
+        assertEquals(Arrays.asList(PLAYER, TARGET), message.getPlayerIds());
+        assertLocation(LOCATION, message.getLocation());
+
+        message = roundTrip(new TeleportToLocationMessage(Collections.emptyList(), LOCATION));
+        assertTrue(message.getPlayerIds().isEmpty());
+    }
+
+    @Test
+    public void prepareTeleport() {
+        assertLocation(LOCATION, roundTrip(new PrepareTeleportMessage(LOCATION)).getLocation());
+    }
+
+    @Test
+    public void teleportRequest() {
+        assertEquals(PLAYER, roundTrip(new TeleportRequestMessage(PLAYER)).getPlayerId());
+    }
+
+    @Test
+    public void cancelTeleport() {
+        assertEquals(PLAYER, roundTrip(new CancelTeleportMessage(PLAYER)).getPlayerId());
+    }
+
+    @Test
+    public void runCommand() {
+        String[] args = {"", "\u00e4", "\u20ac", "\uD83D\uDE00", "spawn"};
+        RunCommandMessage message = roundTrip(new RunCommandMessage(PLAYER, "warp", LOCATION, args));
+        assertEquals(PLAYER, message.getSenderId());
+        assertEquals("warp", message.getCommand());
+        assertLocation(LOCATION, message.getLocation());
+        assertArrayEquals(args, message.getArgs());
+
+        message = roundTrip(new RunCommandMessage(null, "tp", null, new String[0]));
+        assertNull(message.getSenderId());
+        assertNull(message.getLocation());
+        assertEquals(0, message.getArgs().length);
+    }
+
+    @Test
+    public void error() {
+        ErrorMessage message = roundTrip(new ErrorMessage("playeroffline", "Notch"));
+        assertEquals("playeroffline", message.getType());
+        assertEquals("Notch", message.getValue());
+    }
+
+    @Test
+    public void locationRequest() {
+        LocationRequestMessage message = roundTrip(new LocationRequestMessage("setwarp", "Console", PLAYER));
+        assertEquals("setwarp", message.getReason());
+        assertEquals("Console", message.getSender());
+        assertEquals(PLAYER, message.getPlayerId());
+    }
+
+    @Test
+    public void playerLocation() {
+        PlayerLocationMessage message = roundTrip(new PlayerLocationMessage("setspawn", "Notch", LOCATION));
+        assertEquals("setspawn", message.getReason());
+        assertEquals("Notch", message.getSender());
+        assertLocation(LOCATION, message.getLocation());
+
+        assertNull(roundTrip(new PlayerLocationMessage("setspawn", "Notch", null)).getLocation());
+    }
+
+    @Test
+    public void ready() {
+        ReadyMessage message = roundTrip(new ReadyMessage(PLAYER, true));
+        assertEquals(PLAYER, message.getPlayerId());
+        assertTrue(message.isSuccess());
+        assertFalse(roundTrip(new ReadyMessage(PLAYER, false)).isSuccess());
+    }
+
+    @Test
+    public void everyChannelIsTested() {
+        Map<String, Message> samples = new HashMap<>();
+        for (Message message : Arrays.asList(
+                new TeleportToPlayerMessage(PLAYER, TARGET),
+                new TeleportToLocationMessage(Collections.singletonList(PLAYER), LOCATION),
+                new PrepareTeleportMessage(LOCATION),
+                new TeleportRequestMessage(PLAYER),
+                new CancelTeleportMessage(PLAYER),
+                new RunCommandMessage(PLAYER, "warp", LOCATION, new String[]{"spawn"}),
+                new ErrorMessage("playeroffline", "Notch"),
+                new LocationRequestMessage("setwarp", "Console", PLAYER),
+                new PlayerLocationMessage("setspawn", "Notch", LOCATION),
+                new ReadyMessage(PLAYER, true))) {
+            assertNull("Two samples for " + message.getChannel(), samples.put(message.getChannel(), message));
+        }
+        for (String channel : Protocol.getChannels()) {
+            Message sample = samples.remove(channel);
+            assertNotNull("No sample message for " + channel, sample);
+            assertEquals(channel, roundTrip(sample).getChannel());
+        }
+        assertTrue("Samples for unregistered channels " + samples.keySet(), samples.isEmpty());
+    }
+
+    @Test
+    public void rejectsUnknownChannel() {
+        assertRejected("sc:unknown", bytes(Protocol.VERSION));
+    }
+
+    @Test
+    public void rejectsWrongVersion() {
+        byte[] data = Protocol.encode(new CancelTeleportMessage(PLAYER));
+        data[0] = Protocol.VERSION - 1;
+        assertRejected(Protocol.CANCEL_TELEPORT, data);
+    }
+
+    @Test
+    public void rejectsEmptyMessage() {
+        assertRejected(Protocol.CANCEL_TELEPORT, new byte[0]);
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        byte[] data = Protocol.encode(new RunCommandMessage(PLAYER, "warp", LOCATION, new String[]{"spawn", "Notch"}));
+        for (int length = 1; length < data.length; length++) {
+            assertRejected(Protocol.RUN_COMMAND, Arrays.copyOf(data, length));
+        }
+    }
+
+    @Test
+    public void rejectsTrailingBytes() {
+        byte[] data = Protocol.encode(new CancelTeleportMessage(PLAYER));
+        assertRejected(Protocol.CANCEL_TELEPORT, Arrays.copyOf(data, data.length + 1));
+    }
+
+    @Test
+    public void rejectsNegativeVarints() {
+        // Count of -1
+        assertRejected(Protocol.TELEPORT_TO_LOCATION, bytes(Protocol.VERSION, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F));
+        // String length of Integer.MIN_VALUE
+        assertRejected(Protocol.ERROR, bytes(Protocol.VERSION, 0x80, 0x80, 0x80, 0x80, 0x08));
+    }
+
+    @Test
+    public void rejectsOversizedVarints() {
+        // More than five bytes
+        assertRejected(Protocol.ERROR, bytes(Protocol.VERSION, 0x80, 0x80, 0x80, 0x80, 0x80, 0x00));
+        // Count of Integer.MAX_VALUE players without the bytes for them
+        assertRejected(Protocol.TELEPORT_TO_LOCATION, bytes(Protocol.VERSION, 0xFF, 0xFF, 0xFF, 0xFF, 0x07));
+        // More arguments than bytes left
+        assertRejected(Protocol.RUN_COMMAND, bytes(Protocol.VERSION, 0, 0, 0, 3, 0, 0));
+        // String longer than the message
+        assertRejected(Protocol.ERROR, bytes(Protocol.VERSION, 10, 'a', 'b'));
+    }
+}
@@ -0,0 +1,162 @@
+package de.themoep.serverclusters.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final int SLOTS = 8;
+    private static final long TICK = 100;
+
+    private long now;
+    private List<String> expired;
+    private TimingWheel<String> wheel;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        expired = new ArrayList<>();
+        wheel = new TimingWheel<>(SLOTS, TICK, expired::add, () -> now);
+    }
+
+    /**
+     * Move the clock forward and advance the wheel to it
+     */
+    private int advanceBy(long millis) {
+        now += millis;
+        return wheel.advance(now);
+    }
+
+    @Test
+    public void testScheduleAndExpire() {
+        wheel.schedule("a", 250);
+        assertTrue(wheel.contains("a"));
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, advanceBy(200));
+        assertTrue(expired.isEmpty());
+        assertTrue(wheel.contains("a"));
+
+        assertEquals(1, advanceBy(100));
+        assertEquals(Collections.singletonList("a"), expired);
+        assertFalse(wheel.contains("a"));
+        assertTrue(wheel.isEmpty());
+
+        // Advancing again doesn't expire it twice
+        assertEquals(0, advanceBy(1000));
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testRescheduleReplacesExpiry() {
+        wheel.schedule("a", 100);
+        wheel.schedule("a", 500);
+        assertEquals(1, wheel.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, advanceBy(100));
+        }
+        assertTrue(expired.isEmpty());
+
+        assertEquals(1, advanceBy(100));
+        assertEquals(Collections.singletonList("a"), expired);
+
+        // An earlier expiry replaces a later one too
+        wheel.schedule("b", 1000);
+        wheel.schedule("b", 100);
+        assertEquals(1, advanceBy(100));
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(0, advanceBy(1000));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        wheel.schedule("a", 100);
+        wheel.schedule("b", 100);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        assertFalse(wheel.cancel("c"));
+        assertFalse(wheel.contains("a"));
+
+        assertEquals(1, advanceBy(1000));
+        assertEquals(Collections.singletonList("b"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testDelayLongerThanWheel() {
+        // Two and a half rotations of the wheel
+        long delay = TICK * SLOTS * 5 / 2;
+        wheel.schedule("a", delay);
+        long start = now;
+        while (now - start < delay - TICK) {
+            assertEquals("Expired after " + (now - start) + "ms", 0, advanceBy(TICK));
+        }
+        assertTrue(wheel.contains("a"));
+        assertEquals(1, advanceBy(TICK));
+        assertEquals(delay, now - start);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    @Test
+    public void testAdvanceMoreTicksThanSlots() {
+        for (int i = 1; i <= SLOTS * 2; i++) {
+            wheel.schedule("key" + i, i * TICK);
+        }
+        wheel.schedule("far", TICK * SLOTS * 10);
+
+        assertEquals(SLOTS * 2, advanceBy(TICK * SLOTS * 3));
+        assertEquals(SLOTS * 2, expired.size());
+        assertTrue(wheel.contains("far"));
+
+        assertEquals(0, advanceBy(TICK * SLOTS * 6));
+        assertEquals(1, advanceBy(TICK * SLOTS));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testNeverExpiresEarly() {
+        Random random = new Random(42);
+        Map<String, Long> deadlines = new HashMap<>();
+        Map<String, Long> expiries = new HashMap<>();
+        wheel = new TimingWheel<>(SLOTS, TICK, key -> expiries.put(key, now), () -> now);
+        long lastDeadline = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            long delay = random.nextInt((int) TICK * SLOTS * 4);
+            wheel.schedule(key, delay);
+            deadlines.put(key, now + delay);
+            lastDeadline = Math.max(lastDeadline, now + delay);
+            // Move the clock by less than a tick so that keys get scheduled between ticks
+            if (random.nextBoolean()) {
+                now += random.nextInt((int) TICK);
+            }
+            if (random.nextInt(10) == 0) {
+                wheel.advance(now);
+            }
+        }
+        while (now <= lastDeadline + TICK) {
+            advanceBy(random.nextInt((int) TICK * 3));
+        }
+
+        assertTrue(wheel.isEmpty());
+        assertEquals(deadlines.keySet(), expiries.keySet());
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            long expiry = expiries.get(entry.getKey());
+            assertTrue(entry.getKey() + " expired at " + expiry + " before its deadline " + entry.getValue(), expiry >= entry.getValue());
+        }
+    }
+}